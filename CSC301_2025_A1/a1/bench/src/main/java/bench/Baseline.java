@@ -0,0 +1,97 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copies of code the services used before it was optimized, kept so the benchmarks can show before/after numbers
+ * side by side in one run. Do not use these outside the benchmarks.
+ */
+final class Baseline {
+
+    private Baseline() {
+    }
+
+    /**
+     * The UserService/ProductService getRequestData body parsing: read lines, then split on ',' and ':'.
+     */
+    static Map<String, String> getRequestData(byte[] body) throws IOException {
+        Map<String, String> data = new HashMap<>();
+
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) sb.append(line);
+        }
+
+        String s = sb.toString().trim();
+        if (s.length() < 2 || !s.startsWith("{") || !s.endsWith("}")) {
+            return data;
+        }
+
+        String content = s.substring(1, s.length() - 1);
+        String[] pairs = content.split(",");
+
+        if (content.trim().isEmpty()) return data;
+
+        for (String pair : pairs) {
+            String[] parts = pair.split(":", 2);
+            if (parts.length == 2) {
+                String key = parts[0].trim().replace("\"", "");
+                String value = parts[1].trim();
+                data.put(key, value);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * The OrderService parseFlatJsonObject.
+     */
+    static Map<String, String> parseFlatJsonObject(String body) {
+        Map<String, String> out = new HashMap<>();
+        if (body == null || body.trim().isEmpty()) return out;
+        String content = body.trim().replaceAll("[{}]", "");
+        for (String pair : content.split(",")) {
+            String[] parts = pair.split(":", 2);
+            if (parts.length == 2) {
+                out.put(parts[0].trim().replace("\"", ""), parts[1].trim().replace("\"", ""));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The product GET response, concatenated on every request.
+     */
+    static String productJson(int id, String name, String description, float price, int quantity) {
+        return "{\"id\":" + id
+                + ",\"name\":\"" + name + "\""
+                + ",\"description\":\"" + description + "\""
+                + ",\"price\":" + price
+                + ",\"quantity\":" + quantity
+                + "}";
+    }
+
+    /**
+     * The UserService sha256LowerHex: a new MessageDigest and a String.format per byte.
+     */
+    static String sha256Hex(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] hash = md.digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) sb.append(String.format("%02X", b));
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
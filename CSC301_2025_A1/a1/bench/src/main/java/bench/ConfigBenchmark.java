@@ -0,0 +1,54 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a port out of config.json: the services' extractPort scan against the Common Config helpers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConfigBenchmark {
+
+    private static final MethodHandle EXTRACT_PORT =
+            Services.staticMethod("UserService", "extractPort", int.class, String.class, String.class);
+    private static final MethodHandle SECTION =
+            Services.staticMethod("Config", "section", String.class, String.class, String.class);
+    private static final MethodHandle GET_INT =
+            Services.staticMethod("Config", "getInt", int.class, String.class, String.class, int.class);
+
+    private String config;
+
+    @Setup
+    public void setup() throws IOException {
+        config = Files.readString(Paths.get("../config.json")).replace("\n", ""); // The services join lines too
+    }
+
+    @Benchmark
+    public int extractPort() throws Throwable {
+        return (int) EXTRACT_PORT.invoke(config, "InterServiceCommunication");
+    }
+
+    @Benchmark
+    public int configGetInt() throws Throwable {
+        return (int) GET_INT.invoke((String) SECTION.invoke(config, "InterServiceCommunication"), "port", -1);
+    }
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password hashing as done on every user create and update, and the password check done on every delete.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+
+    private static final MethodHandle SHA256 =
+            Services.staticMethod("UserService", "sha256", byte[].class, String.class);
+    private static final MethodHandle PASSWORD_MATCHES =
+            Services.staticMethod("UserService", "passwordMatches", boolean.class, String.class, byte[].class);
+
+    private final String password = "correct horse battery staple";
+    private final String storedHex = Baseline.sha256Hex(password);
+    private byte[] storedHash;
+
+    @Setup
+    public void setup() throws Throwable {
+        storedHash = (byte[]) SHA256.invoke(password);
+    }
+
+    @Benchmark
+    public String baselineSha256Hex() {
+        return Baseline.sha256Hex(password);
+    }
+
+    @Benchmark
+    public byte[] sha256() throws Throwable {
+        return (byte[]) SHA256.invoke(password);
+    }
+
+    @Benchmark
+    public boolean baselineVerify() {
+        return Baseline.sha256Hex(password).equals(storedHex);
+    }
+
+    @Benchmark
+    public boolean verify() throws Throwable {
+        return (boolean) PASSWORD_MATCHES.invoke(password, storedHash);
+    }
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One internal hop from the OrderService's ServiceClient to a stub UserService that answers a canned user: a GET of
+ * /user/1 over pooled keep-alive HTTP against the same read as a GET_USER frame over the binary transport. Both
+ * stubs do no work, so the difference is the cost of the transport on both ends.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true") // As runme.sh starts the services
+@State(Scope.Benchmark)
+public class HopBenchmark {
+
+    private static final Class<?> CLIENT = Services.type("ServiceClient");
+    private static final Class<?> TRACE = Services.type("Trace");
+    private static final MethodHandle NEW_CLIENT =
+            Services.constructor("ServiceClient", int.class, int.class, int.class, int.class, int.class, boolean.class,
+                    int.class, int.class);
+    private static final MethodHandle NEW_BINARY_CLIENT = Services.constructor("BinaryClient", int.class, int.class);
+    private static final MethodHandle USE_BINARY = Services.method("ServiceClient", "useBinary", void.class,
+            Services.type("BinaryClient"), int.class, int.class);
+    private static final MethodHandle GET_USER = Services.method("ServiceClient", "getUser", CompletableFuture.class,
+            String.class, int.class, TRACE);
+    private static final MethodHandle CODE = Services.getter("OrderService$HttpResult", "code", int.class);
+    private static final MethodHandle NEW_TRACE = Services.constructor("Trace", String.class);
+    private static final MethodHandle NEW_REPLY = Services.constructor("BinaryServer$Reply", int.class, byte[].class);
+    private static final MethodHandle START_BINARY = Services.staticMethod("BinaryServer", "start", void.class,
+            String.class, int.class, Services.type("BinaryServer$Handler"));
+
+    private static final byte[] USER =
+            "{\"id\":1,\"username\":\"u\",\"email\":\"e@x\",\"password\":\"AB\"}".getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer backend;
+    private ExecutorService backendThreads;
+    private String base;
+    private Object httpClient;
+    private Object binaryClient;
+    private Object trace;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        backend = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        backend.createContext("/user/", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, USER.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(USER);
+            }
+        });
+        backendThreads = Executors.newFixedThreadPool(4);
+        backend.setExecutor(backendThreads);
+        backend.start();
+        int port = backend.getAddress().getPort();
+        base = "http://127.0.0.1:" + port;
+
+        int offset;
+        try (ServerSocket free = new ServerSocket(0)) {
+            offset = free.getLocalPort() - port;
+        }
+        Object reply = NEW_REPLY.invoke(200, USER);
+        Class<?> handlerType = Services.type("BinaryServer$Handler");
+        Object handler = Proxy.newProxyInstance(handlerType.getClassLoader(), new Class<?>[] {handlerType},
+                (proxy, method, args) -> reply);
+        START_BINARY.invoke("{\"binaryPortOffset\":" + offset + "}", port, handler);
+
+        httpClient = NEW_CLIENT.invoke(2000, 5000, 64, 1024, 100, false, 5, 1000);
+        binaryClient = NEW_CLIENT.invoke(2000, 5000, 64, 1024, 100, false, 5, 1000);
+        USE_BINARY.invoke(binaryClient, NEW_BINARY_CLIENT.invoke(2000, 2), offset, 0);
+        trace = NEW_TRACE.invoke("");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        backend.stop(0); // The binary transport's threads are daemons and go with the fork
+        backendThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public int httpGetUser() throws Throwable {
+        return getUser(httpClient);
+    }
+
+    @Benchmark
+    public int binaryGetUser() throws Throwable {
+        return getUser(binaryClient);
+    }
+
+    private int getUser(Object client) throws Throwable {
+        Object result = ((CompletableFuture<?>) GET_USER.invoke(CLIENT.cast(client), base, 1, TRACE.cast(trace)))
+                .get(5, TimeUnit.SECONDS);
+        int code = (int) CODE.invoke(result);
+        if (code != 200) throw new IllegalStateException("Read failed with " + code);
+        return code;
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request body parsing: the old split based parsers against the shared JsonReader, on a typical create body.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    private static final Class<?> FIELDS = Services.type("JsonFields");
+    private static final MethodHandle NEW_FIELDS = Services.constructor("JsonFields");
+    private static final MethodHandle PARSE =
+            Services.staticMethod("JsonReader", "parse", boolean.class, byte[].class, int.class, int.class, FIELDS);
+    private static final MethodHandle GET_REQUEST_DATA =
+            Services.staticMethod("UserService$UserHandler", "getRequestData", FIELDS, HttpExchange.class);
+
+    private final String text = "{\"command\":\"create\",\"id\":1234,\"username\":\"tester-1234\","
+            + "\"email\":\"tester1234@example.com\",\"password\":\"correct horse battery staple\"}";
+    private final byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    private Object fields;
+
+    @Setup
+    public void setup() {
+        fields = Services.newInstance(NEW_FIELDS);
+    }
+
+    @Benchmark
+    public Map<String, String> baselineGetRequestData() throws Exception {
+        return Baseline.getRequestData(body);
+    }
+
+    @Benchmark
+    public Map<String, String> baselineParseFlatJsonObject() {
+        return Baseline.parseFlatJsonObject(text);
+    }
+
+    @Benchmark
+    public boolean jsonReaderParse() throws Throwable {
+        return (boolean) PARSE.invoke(body, 0, body.length, fields);
+    }
+
+    @Benchmark
+    public Object getRequestData() throws Throwable {
+        return GET_REQUEST_DATA.invoke((HttpExchange) new StubExchange("POST", "/user", body));
+    }
+}
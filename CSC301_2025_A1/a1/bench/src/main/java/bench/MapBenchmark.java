@@ -0,0 +1,135 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Lookups by id on the users/products tables: ConcurrentHashMap with boxed keys against IntConcurrentMap, and the
+ * heap and memory-mapped product stores. Ids are random so the numbers include cache misses, as with real traffic.
+ * The mixed benchmark runs four threads, each doing one write per nine reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MapBenchmark {
+
+    private static final MethodHandle NEW_INT_MAP = Services.constructor("IntConcurrentMap", int.class);
+    private static final MethodHandle INT_MAP_GET = Services.method("IntConcurrentMap", "get", Object.class, int.class);
+    private static final MethodHandle INT_MAP_PUT =
+            Services.method("IntConcurrentMap", "put", Object.class, int.class, Object.class);
+    private static final Class<?> PRODUCT = Services.type("Product");
+    private static final MethodHandle NEW_PRODUCT =
+            Services.constructor("Product", int.class, String.class, String.class, float.class, int.class);
+    private static final MethodHandle NEW_HEAP_STORE = Services.constructor("HeapProductStore");
+    private static final MethodHandle NEW_MAPPED_STORE =
+            Services.constructor("MappedProductStore", Path.class, int.class);
+    private static final MethodHandle HEAP_GET = Services.method("HeapProductStore", "get", PRODUCT, int.class);
+    private static final MethodHandle HEAP_INSERT = Services.method("HeapProductStore", "insert", boolean.class, PRODUCT);
+    private static final MethodHandle MAPPED_GET = Services.method("MappedProductStore", "get", PRODUCT, int.class);
+    private static final MethodHandle MAPPED_INSERT =
+            Services.method("MappedProductStore", "insert", boolean.class, PRODUCT);
+
+    @Param({"100000"})
+    public int size;
+
+    private int[] keys;
+    private ConcurrentHashMap<Integer, Object> chm;
+    private Object intMap;
+    private Object heapStore;
+    private Object mappedStore;
+    private Path mappedDir;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i = new Random().nextInt(1 << 16);
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        keys = new Random(42).ints(1 << 16, 1, size + 1).toArray();
+        chm = new ConcurrentHashMap<>();
+        intMap = NEW_INT_MAP.invoke(16);
+        heapStore = NEW_HEAP_STORE.invoke();
+        mappedDir = Files.createTempDirectory("bench-products");
+        mappedStore = NEW_MAPPED_STORE.invoke(mappedDir, size * 2);
+        for (int id = 1; id <= size; id++) {
+            Object p = NEW_PRODUCT.invoke(id, "name" + id, "description of " + id, 9.99f, 100);
+            chm.put(id, p);
+            INT_MAP_PUT.invoke(intMap, id, p);
+            HEAP_INSERT.invoke(heapStore, p);
+            MAPPED_INSERT.invoke(mappedStore, p);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(mappedDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private int nextKey(Cursor c) {
+        return keys[c.i++ & (keys.length - 1)];
+    }
+
+    @Benchmark
+    public Object concurrentHashMapGet(Cursor c) {
+        return chm.get(nextKey(c));
+    }
+
+    @Benchmark
+    public Object intConcurrentMapGet(Cursor c) throws Throwable {
+        return INT_MAP_GET.invoke(intMap, nextKey(c));
+    }
+
+    @Benchmark
+    public Object heapStoreGet(Cursor c) throws Throwable {
+        return HEAP_GET.invoke(heapStore, nextKey(c));
+    }
+
+    @Benchmark
+    public Object mappedStoreGet(Cursor c) throws Throwable {
+        return MAPPED_GET.invoke(mappedStore, nextKey(c));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object concurrentHashMapMixed(Cursor c) {
+        int key = nextKey(c);
+        if ((c.i % 10) == 0) return chm.put(key, chm.get(key));
+        return chm.get(key);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object intConcurrentMapMixed(Cursor c) throws Throwable {
+        int key = nextKey(c);
+        if ((c.i % 10) == 0) return INT_MAP_PUT.invoke(intMap, key, INT_MAP_GET.invoke(intMap, key));
+        return INT_MAP_GET.invoke(intMap, key);
+    }
+}
@@ -0,0 +1,205 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Stress test of IntConcurrentMap, run as a plain program rather than a benchmark:
+ *    java -cp target/benchmarks.jar bench.MapStress [threads] [seconds]
+ * It exits with status 1 on the first wrong answer.
+ *
+ * Phase one: every writer thread owns the keys equal to its index modulo the thread count and puts, removes,
+ * reinserts and updates them at random, so segments fill with tombstones and rehash, while keeping its own HashMap
+ * of what each key should hold. Reader threads get random keys meanwhile and check that every value found belongs to
+ * its key. At the end the map must hold exactly the union of the writers' maps, by get, size and forEach.
+ * Phase two: every thread increments the same few counters with update, so the final values must add up to the
+ * number of increments made.
+ */
+public final class MapStress {
+
+    private static final MethodHandle NEW_MAP = Services.constructor("IntConcurrentMap");
+    private static final MethodHandle GET = Services.method("IntConcurrentMap", "get", Object.class, int.class);
+    private static final MethodHandle PUT =
+            Services.method("IntConcurrentMap", "put", Object.class, int.class, Object.class);
+    private static final MethodHandle PUT_IF_ABSENT =
+            Services.method("IntConcurrentMap", "putIfAbsent", Object.class, int.class, Object.class);
+    private static final MethodHandle REMOVE = Services.method("IntConcurrentMap", "remove", Object.class, int.class);
+    private static final MethodHandle REMOVE_IF =
+            Services.method("IntConcurrentMap", "remove", boolean.class, int.class, Object.class);
+    private static final MethodHandle UPDATE =
+            Services.method("IntConcurrentMap", "update", Object.class, int.class, UnaryOperator.class);
+    private static final MethodHandle SIZE = Services.method("IntConcurrentMap", "size", int.class);
+    private static final MethodHandle FOR_EACH =
+            Services.method("IntConcurrentMap", "forEach", void.class, Consumer.class);
+
+    private static final int KEYS_PER_WRITER = 20_000;
+    private static final int COUNTERS = 8;
+
+    private MapStress() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Object map = NEW_MAP.invoke();
+        List<Map<Integer, Long>> models = new ArrayList<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        long until = System.nanoTime() + seconds * 500_000_000L; // Half the time for each phase
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Map<Integer, Long> model = new HashMap<>();
+            models.add(model);
+            int writer = t;
+            workers.add(start(failure, () -> write(map, writer, threads, model, until)));
+            workers.add(start(failure, () -> read(map, threads, writing)));
+        }
+        for (int i = 0; i < workers.size(); i += 2) workers.get(i).join();
+        writing.set(false);
+        for (Thread w : workers) w.join();
+        check(failure);
+
+        Map<Integer, Long> expected = new HashMap<>();
+        for (Map<Integer, Long> model : models) expected.putAll(model);
+        for (int key = 0; key < threads * KEYS_PER_WRITER; key++) {
+            Object v = GET.invoke(map, key);
+            if (v == null ? expected.containsKey(key) : !v.equals(expected.get(key))) {
+                fail(failure, "key " + key + " holds " + v + ", expected " + expected.get(key));
+            }
+        }
+        int size = (int) SIZE.invoke(map);
+        if (size != expected.size()) fail(failure, "size " + size + ", expected " + expected.size());
+        AtomicLong seen = new AtomicLong();
+        FOR_EACH.invoke(map, (Consumer<Object>) v -> {
+            long value = (Long) v;
+            if (!Long.valueOf(value).equals(expected.get(keyOf(value)))) fail(failure, "forEach found stale " + value);
+            seen.incrementAndGet();
+        });
+        if (seen.get() != expected.size()) fail(failure, "forEach saw " + seen.get() + ", expected " + expected.size());
+        check(failure);
+        System.out.println("Phase one: " + expected.size() + " entries as expected after " + threads + " writers");
+
+        Object counters = NEW_MAP.invoke();
+        for (int c = 0; c < COUNTERS; c++) PUT.invoke(counters, c, 0L);
+        long end = System.nanoTime() + seconds * 500_000_000L;
+        AtomicLong increments = new AtomicLong();
+        UnaryOperator<Object> increment = v -> (Long) v + 1;
+        workers.clear();
+        for (int t = 0; t < threads; t++) {
+            workers.add(start(failure, () -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long n = 0;
+                while (System.nanoTime() < end) {
+                    UPDATE.invoke(counters, rnd.nextInt(COUNTERS), increment);
+                    n++;
+                }
+                increments.addAndGet(n);
+            }));
+        }
+        for (Thread w : workers) w.join();
+        check(failure);
+        long total = 0;
+        for (int c = 0; c < COUNTERS; c++) total += (Long) GET.invoke(counters, c);
+        if (total != increments.get()) fail(failure, "counters add up to " + total + ", expected " + increments.get());
+        check(failure);
+        System.out.println("Phase two: " + total + " increments as expected");
+    }
+
+    // Values carry their key in the high half, so a reader can tell a value that belongs to another key
+    private static long value(int key, int version) {
+        return ((long) key << 32) | (version & 0xFFFFFFFFL);
+    }
+
+    private static int keyOf(long value) {
+        return (int) (value >>> 32);
+    }
+
+    private static void write(Object map, int writer, int threads, Map<Integer, Long> model, long until)
+            throws Throwable {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int version = 0;
+        while (System.nanoTime() < until) {
+            int key = rnd.nextInt(KEYS_PER_WRITER) * threads + writer;
+            Long v = value(key, ++version); // One box for the map and the model, remove(key, v) compares identity
+            Long now = model.get(key);
+            Object old;
+            switch (rnd.nextInt(6)) {
+                case 0:
+                case 1:
+                    old = PUT.invoke(map, key, v);
+                    model.put(key, v);
+                    break;
+                case 2:
+                    old = PUT_IF_ABSENT.invoke(map, key, v);
+                    if (now == null) model.put(key, v);
+                    break;
+                case 3:
+                    old = REMOVE.invoke(map, key);
+                    model.remove(key);
+                    break;
+                case 4: {
+                    boolean removed = (boolean) REMOVE_IF.invoke(map, key, now == null ? v : now);
+                    if (removed != (now != null)) throw new AssertionError("remove(" + key + ", v) gave " + removed);
+                    if (removed) model.remove(key);
+                    continue;
+                }
+                default: {
+                    Object updated = UPDATE.invoke(map, key, (UnaryOperator<Object>) x -> v);
+                    if (now != null) model.put(key, v);
+                    if (!(now == null ? updated == null : v.equals(updated))) {
+                        throw new AssertionError("update(" + key + ") gave " + updated);
+                    }
+                    continue;
+                }
+            }
+            if (now == null ? old != null : !now.equals(old)) {
+                throw new AssertionError("key " + key + " held " + old + ", expected " + now);
+            }
+        }
+    }
+
+    private static void read(Object map, int threads, AtomicBoolean writing) throws Throwable {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        while (writing.get()) {
+            int key = rnd.nextInt(threads * KEYS_PER_WRITER);
+            Object v = GET.invoke(map, key);
+            if (v != null && keyOf((Long) v) != key) throw new AssertionError("get(" + key + ") returned " + v);
+        }
+    }
+
+    private interface Work {
+        void run() throws Throwable;
+    }
+
+    private static Thread start(AtomicReference<String> failure, Work work) {
+        Thread t = new Thread(() -> {
+            try {
+                work.run();
+            } catch (Throwable e) {
+                fail(failure, String.valueOf(e));
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void fail(AtomicReference<String> failure, String message) {
+        failure.compareAndSet(null, message);
+    }
+
+    private static void check(AtomicReference<String> failure) {
+        if (failure.get() == null) return;
+        System.out.println("FAILED: " + failure.get());
+        System.exit(1);
+    }
+}
@@ -0,0 +1,110 @@
+package bench;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One "place order" end to end inside this JVM: the real OrderHandler, ServiceClient and OrderLedger, talking over
+ * loopback HTTP to stub User/Product services that answer with canned bodies. It measures the OrderService's own
+ * cost per order (parsing, two downstream calls, ledger append, reply) without the real backends' work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlaceOrderBenchmark {
+
+    private static final MethodHandle NEW_CLIENT =
+            Services.constructor("ServiceClient", int.class, int.class, int.class, int.class, int.class, boolean.class,
+                    int.class, int.class);
+    private static final MethodHandle NEW_LEDGER = Services.constructor("OrderLedger", Path.class);
+    private static final MethodHandle NEW_SHARDS = Services.constructor("ProductShards", List.class);
+    private static final MethodHandle NEW_HANDLER = Services.constructor("OrderService$OrderHandler",
+            String.class, Services.type("ProductShards"), Services.type("ServiceClient"), Services.type("OrderLedger"));
+
+    private static final byte[] ORDER =
+            "{\"command\":\"place order\",\"user_id\":1,\"product_id\":2,\"quantity\":1}".getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer backends;
+    private ExecutorService backendThreads;
+    private HttpHandler handler;
+    private Path ledgerDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        backends = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        backends.createContext("/user/", canned("{\"id\":1,\"username\":\"u\",\"email\":\"e@x\",\"password\":\"AB\"}"));
+        backends.createContext("/product", canned("{\"id\":2,\"name\":\"n\",\"description\":\"d\",\"price\":1.0,\"quantity\":99}"));
+        backendThreads = Executors.newFixedThreadPool(4);
+        backends.setExecutor(backendThreads);
+        backends.start();
+
+        String address = "127.0.0.1:" + backends.getAddress().getPort();
+        ledgerDir = Files.createTempDirectory("bench-ledger");
+        handler = (HttpHandler) NEW_HANDLER.invoke("http://" + address, NEW_SHARDS.invoke(List.of(address)),
+                NEW_CLIENT.invoke(2000, 5000, 64, 1024, 100, true, 5, 1000),
+                NEW_LEDGER.invoke(ledgerDir));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        backends.stop(0);
+        backendThreads.shutdownNow();
+        try (Stream<Path> files = Files.walk(ledgerDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int placeOrder() throws Exception {
+        StubExchange exchange = new StubExchange("POST", "/order", ORDER);
+        handler.handle(exchange);
+        int code = exchange.done.get(5, TimeUnit.SECONDS);
+        if (code != 200) throw new IllegalStateException("Order failed with " + code);
+        return code;
+    }
+
+    private static HttpHandler canned(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        };
+    }
+}
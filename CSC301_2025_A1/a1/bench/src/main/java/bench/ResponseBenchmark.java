@@ -0,0 +1,56 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON response building: concatenating the product body on every GET (before) against encoding it once per write
+ * and serving the cached bytes (after).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    private static final MethodHandle NEW_PRODUCT =
+            Services.constructor("Product", int.class, String.class, String.class, float.class, int.class);
+    private static final MethodHandle PRODUCT_JSON = Services.getter("Product", "json", byte[].class);
+
+    private Object product;
+
+    @Setup
+    public void setup() {
+        product = Services.newInstance(NEW_PRODUCT, 42, "Mechanical keyboard", "Tenkeyless, brown switches", 89.99f, 120);
+    }
+
+    @Benchmark
+    public byte[] baselineConcatPerGet() {
+        return Baseline.productJson(42, "Mechanical keyboard", "Tenkeyless, brown switches", 89.99f, 120)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object encodeOnWrite() throws Throwable {
+        return NEW_PRODUCT.invoke(42, "Mechanical keyboard", "Tenkeyless, brown switches", 89.99f, 120);
+    }
+
+    @Benchmark
+    public byte[] cachedPerGet() throws Throwable {
+        return (byte[]) PRODUCT_JSON.invoke(product);
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to the service classes. They live in the default package, which a named package cannot import, and most
+ * of the interesting methods are private, so benchmarks reach them through method handles. Handles kept in static
+ * final fields are constants to the JIT and are inlined like a direct call.
+ */
+final class Services {
+
+    private Services() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle staticMethod(String owner, String name, Class<?> returnType, Class<?>... params) {
+        try {
+            Class<?> c = type(owner);
+            return MethodHandles.privateLookupIn(c, MethodHandles.lookup())
+                    .findStatic(c, name, MethodType.methodType(returnType, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle method(String owner, String name, Class<?> returnType, Class<?>... params) {
+        try {
+            Class<?> c = type(owner);
+            return MethodHandles.privateLookupIn(c, MethodHandles.lookup())
+                    .findVirtual(c, name, MethodType.methodType(returnType, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle constructor(String owner, Class<?>... params) {
+        try {
+            Class<?> c = type(owner);
+            return MethodHandles.privateLookupIn(c, MethodHandles.lookup())
+                    .findConstructor(c, MethodType.methodType(void.class, params));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle getter(String owner, String field, Class<?> type) {
+        try {
+            Class<?> c = type(owner);
+            return MethodHandles.privateLookupIn(c, MethodHandles.lookup()).findGetter(c, field, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object newInstance(MethodHandle constructor, Object... args) {
+        try {
+            return constructor.invokeWithArguments(args);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+/**
+ * Reserves of one unit of a single hot product from four threads at once, as in a flash sale: the heap store, where
+ * every reserve replaces the one Product, against StripedStockStore. The stock is refilled before each iteration so
+ * it never runs out. Throughput, so more threads on more cores should give more operations per microsecond.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StockBenchmark {
+
+    private static final int HOT_ID = 7;
+    private static final int STOCK = 1 << 30;
+
+    private static final Class<?> PRODUCT = Services.type("Product");
+    private static final Class<?> STORE = Services.type("ProductStore");
+    private static final MethodHandle NEW_PRODUCT =
+            Services.constructor("Product", int.class, String.class, String.class, float.class, int.class);
+    private static final MethodHandle WITH_QUANTITY = Services.method("Product", "withQuantity", PRODUCT, int.class);
+    private static final MethodHandle NEW_HEAP_STORE = Services.constructor("HeapProductStore");
+    private static final MethodHandle NEW_STRIPED_STORE =
+            Services.constructor("StripedStockStore", STORE, Set.class, int.class, int.class);
+    private static final MethodHandle INSERT = Services.method("ProductStore", "insert", boolean.class, PRODUCT);
+    private static final MethodHandle UPDATE =
+            Services.method("ProductStore", "update", PRODUCT, int.class, UnaryOperator.class);
+    private static final MethodHandle RESERVE = Services.method("ProductStore", "reserve", PRODUCT, int.class, int.class);
+
+    private Object heapStore;
+    private Object stripedStore;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Object p = NEW_PRODUCT.invoke(HOT_ID, "hot", "flash sale item", 9.99f, STOCK);
+        heapStore = NEW_HEAP_STORE.invoke();
+        INSERT.invoke(heapStore, p);
+        Object inner = NEW_HEAP_STORE.invoke();
+        INSERT.invoke(inner, p);
+        stripedStore = NEW_STRIPED_STORE.invoke(inner, Set.of(HOT_ID), Runtime.getRuntime().availableProcessors(), 100);
+    }
+
+    @Setup(Level.Iteration)
+    public void refill() throws Throwable {
+        UnaryOperator<Object> full = old -> {
+            try {
+                return WITH_QUANTITY.invoke(old, STOCK);
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        };
+        UPDATE.invoke(heapStore, HOT_ID, full);
+        UPDATE.invoke(stripedStore, HOT_ID, full);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object heapReserve() throws Throwable {
+        return RESERVE.invoke(heapStore, HOT_ID, 1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object stripedReserve() throws Throwable {
+        return RESERVE.invoke(stripedStore, HOT_ID, 1);
+    }
+}
@@ -8,7 +8,8 @@ usage() {
   echo "Usage:"
   echo "  ./runme.sh -c                 Compile all services"
   echo "  ./runme.sh -u                 Start UserService"
-  echo "  ./runme.sh -p                 Start ProductService"
+  echo "  ./runme.sh -p [port [primary]] Start ProductService (a port starts an extra shard,"
+  echo "                                then a primary host:port makes it a read replica of it)"
   echo "  ./runme.sh -i                 Start ISCS"
   echo "  ./runme.sh -o                 Start OrderService"
   echo "  ./runme.sh -w workloadfile    Run workload parser"
@@ -22,11 +23,11 @@ compile_service() {
 
   mkdir -p "$out_dir"
 
-  # Compile all .java files in that service folder
-  # (If you later use packages, we can adjust this.)
+  # Compile all .java files in that service folder, together with the shared
+  # helpers in src/Common (If you later use packages, we can adjust this.)
   if compgen -G "$src_dir/*.java" > /dev/null; then
     echo "[compile] $service"
-    javac -Xlint:all -d "$out_dir" "$src_dir"/*.java
+    javac -Xlint:all -d "$out_dir" "$src_dir"/*.java "$ROOT_DIR/src/Common"/*.java
   else
     echo "[compile] $service: no Java files found in $src_dir"
   fi
@@ -48,8 +49,10 @@ start_java_service() {
 
   echo "[start] $service"
   cd "$out_dir"
-  # Run from inside compiled/<Service> so "java ServiceName" works easily
-  java "$service" "$config_path"
+  # Run from inside compiled/<Service> so "java ServiceName" works easily.
+  # nodelay: HttpServer writes headers and body separately, and without it Nagle holds the body back until the
+  # caller's delayed ACK, adding up to 40 ms to every call between the services
+  java -Dsun.net.httpserver.nodelay=true "$service" "$config_path" "${@:2}"
 }
 
 run_workload() {
@@ -83,7 +86,7 @@ case "$1" in
     start_java_service "UserService"
     ;;
   -p)
-    start_java_service "ProductService"
+    start_java_service "ProductService" "${@:2}"
     ;;
   -i)
     start_java_service "ISCS"
@@ -0,0 +1,142 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded admission in front of a service's handler executor, so an overloaded service turns requests away at once
+ * instead of queueing them until the callers time out. Set per service in its config.json section:
+ * "queueLimit" (default 256): requests waiting for a handler thread; the ones beyond it are rejected.
+ * "queueBudgetMs" (default 100): a request that waited longer than this for a thread is rejected when it gets one.
+ * "retryAfterSeconds" (default 1): sent in the Retry-After header of every rejection.
+ * "deadlineMs" (default 0, none): the time a request may take, for requests that do not bring an X-Deadline-Ms.
+ *
+ * A request whose deadline (see Trace) has passed by the time it gets a thread is answered 504 without calling the
+ * handler, as its caller has given up on it. The deadline runs from when the request arrived, so it includes the
+ * wait for a thread.
+ *
+ * A rejected request still has to be read and answered, so it runs on a small pool of its own where the filter
+ * added by Metrics.instrument answers it with a 503 without calling the handler. Requests to contexts that are not
+ * instrumented (/metrics) are always served.
+ */
+final class Admission {
+
+    private static final long SHED = -1;
+    private static final byte[] BODY = "{\"status\":\"Service Unavailable\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EXPIRED_BODY = "{\"status\":\"Gateway Timeout\"}".getBytes(StandardCharsets.UTF_8);
+    private static final ThreadLocal<long[]> WAITED = ThreadLocal.withInitial(() -> new long[1]); // Nanos, or SHED
+
+    private static volatile long budgetNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private static volatile String retryAfter = "1";
+    private static volatile int deadlineMs;
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+
+    static final Filter FILTER = new Filter() {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long waited = WAITED.get()[0];
+            if (waited == SHED || waited > budgetNanos) {
+                rejected.increment();
+                exchange.getResponseHeaders().set("Retry-After", retryAfter);
+                answer(exchange, 503, BODY);
+                return;
+            }
+
+            Trace trace = Trace.of(exchange);
+            long arrived = System.nanoTime() - waited;
+            String budget = exchange.getRequestHeaders().getFirst(Trace.DEADLINE_HEADER);
+            if (budget != null) {
+                try {
+                    trace.deadlineWithin(arrived, Long.parseLong(budget.trim()));
+                } catch (NumberFormatException e) {
+                    // Ignored like a missing one
+                }
+            }
+            if (deadlineMs > 0) trace.deadlineWithin(arrived, deadlineMs);
+            if (trace.expired()) {
+                expired.increment();
+                answer(exchange, 504, EXPIRED_BODY);
+                return;
+            }
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "Rejects requests the service has no room for";
+        }
+    };
+
+    static {
+        Metrics.gauge("admission_rejected", "Requests rejected with a 503 since startup.", rejected::sum);
+        Metrics.gauge("admission_expired", "Requests answered 504 unhandled as their deadline had passed.", expired::sum);
+    }
+
+    private Admission() {
+    }
+
+    /**
+     * Puts bounded admission in front of an executor and reads the limits from the service's config section.
+     * @param pool The executor running the handlers.
+     * @param serviceConfig The service's section of config.json.
+     * @return The executor to pass to HttpServer.setExecutor.
+     */
+    static Executor limit(Executor pool, String serviceConfig) {
+        budgetNanos = TimeUnit.MILLISECONDS.toNanos(Config.getInt(serviceConfig, "queueBudgetMs", 100));
+        retryAfter = Integer.toString(Config.getInt(serviceConfig, "retryAfterSeconds", 1));
+        deadlineMs = Config.getInt(serviceConfig, "deadlineMs", 0);
+        int queueLimit = Config.getInt(serviceConfig, "queueLimit", 256);
+
+        AtomicInteger queued = new AtomicInteger();
+        Metrics.gauge("admission_queued", "Requests waiting for a handler thread.", queued::get);
+        // If even this pool is backed up, the server's own thread answers the 503 rather than dropping the connection
+        ThreadPoolExecutor rejecter = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1024), r -> {
+                    Thread t = new Thread(r, "admission-reject");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        return exchange -> {
+            if (queued.incrementAndGet() > queueLimit) {
+                queued.decrementAndGet();
+                rejecter.execute(() -> run(exchange, SHED));
+                return;
+            }
+            long enqueued = System.nanoTime();
+            pool.execute(() -> {
+                queued.decrementAndGet();
+                run(exchange, System.nanoTime() - enqueued);
+            });
+        };
+    }
+
+    private static void answer(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length); // With no body at all the server drops the connection
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+        exchange.close();
+    }
+
+    // The filter runs on this thread before the handler, the wait is handed to it through WAITED
+    private static void run(Runnable exchange, long waited) {
+        long[] slot = WAITED.get();
+        slot[0] = waited;
+        try {
+            exchange.run();
+        } finally {
+            slot[0] = 0;
+        }
+    }
+}
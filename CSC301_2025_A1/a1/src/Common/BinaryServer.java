@@ -0,0 +1,252 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Internal transport between the services, next to the public HTTP/JSON API: length-prefixed binary frames over
+ * long-lived TCP connections. Each request carries an id that its response repeats, so a caller can have many calls
+ * in flight on one connection and match the answers however they arrive. A service listens on its HTTP port plus
+ * "binaryPortOffset" from its config section (0, the default, turns it off), so shards started with a port
+ * override each get their own.
+ *
+ * Request frame:  [int length][int requestId][byte type][int id][int arg][int deadlineMs]
+ * Response frame: [int length][int requestId][short status][body]
+ * The length counts the bytes after itself. deadlineMs is what the caller has left of its deadline, as X-Deadline-Ms
+ * is over HTTP (0 for none), and the body is the HTTP API's answer.
+ *
+ * The types are GET_USER (id), GET_PRODUCT (id) and ADJUST_STOCK (id, arg: a negative arg reserves -arg units, a
+ * positive one releases them). The status is the HTTP status the same call would get, and the body the same bytes,
+ * which the services keep encoded already. Every connection has one thread that reads the requests and hands them
+ * to a pool of "threads" handler threads shared by all connections, so a slow request does not hold up the ones
+ * behind it and the answers go back in whatever order they are ready. As over HTTP (see Admission), at most
+ * "queueLimit" requests wait for a handler and one that waited more than "queueBudgetMs" gets a 503, and one whose
+ * deadline (deadlineMs, or "deadlineMs" of the service's section when sooner) has passed when it gets a handler is
+ * answered 504 unhandled. Answers ready at the same time are flushed together.
+ */
+final class BinaryServer {
+
+    static final byte GET_USER = 1, GET_PRODUCT = 2, ADJUST_STOCK = 3;
+    static final int REQUEST_LENGTH = 4 + 1 + 4 + 4 + 4;
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] UNAVAILABLE = "{\"status\":\"Service Unavailable\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EXPIRED = "{\"status\":\"Gateway Timeout\"}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Answers one request. Runs on a handler thread.
+     */
+    interface Handler {
+        /**
+         * @param type GET_USER, GET_PRODUCT or ADJUST_STOCK.
+         * @param id The user or product id.
+         * @param arg The stock change for ADJUST_STOCK, otherwise 0.
+         * @return The answer, see Reply.
+         */
+        Reply handle(byte type, int id, int arg);
+    }
+
+    /**
+     * A status code and body, as the HTTP API would answer.
+     */
+    static final class Reply {
+        final int status;
+        final byte[] body;
+
+        Reply(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        Reply(int status) {
+            this(status, EMPTY);
+        }
+    }
+
+    private static final LongAdder requests = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    private BinaryServer() {
+    }
+
+    /**
+     * Starts listening if the service's section has a "binaryPortOffset".
+     * @param serviceConfig The service's section of config.json.
+     * @param httpPort The port the service's HTTP API listens on.
+     * @param handler Answers the requests.
+     * @throws IOException If the port cannot be bound.
+     */
+    static void start(String serviceConfig, int httpPort, Handler handler) throws IOException {
+        int offset = Config.getInt(serviceConfig, "binaryPortOffset", 0);
+        if (offset == 0) return;
+
+        ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(httpPort + offset), 128);
+        int threads = Math.max(1, Config.getInt(serviceConfig, "threads", 20));
+        ExecutorService pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, Config.getInt(serviceConfig, "queueLimit", 256))), r -> {
+                    Thread t = new Thread(r, "binary-handler");
+                    t.setDaemon(true);
+                    return t;
+                });
+        Limits limits = new Limits(TimeUnit.MILLISECONDS.toNanos(Config.getInt(serviceConfig, "queueBudgetMs", 100)),
+                Config.getInt(serviceConfig, "deadlineMs", 0));
+        Metrics.gauge("binary_requests", "Requests answered over the binary transport since startup.", requests::sum);
+        Metrics.gauge("binary_rejected", "Binary requests answered 503 as no handler was free in time.", rejected::sum);
+        Metrics.gauge("binary_expired", "Binary requests answered 504 unhandled as their deadline had passed.",
+                expired::sum);
+        Metrics.gauge("binary_connections", "Open binary transport connections.", connections::get);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread reader = new Thread(() -> serve(socket, handler, pool, limits),
+                            "binary-" + socket.getRemoteSocketAddress());
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    System.out.println("Binary transport stopped accepting: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "binary-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Binary transport listening on port " + (httpPort + offset));
+    }
+
+    private static final class Limits {
+        final long queueBudgetNanos;
+        final int deadlineMs;
+
+        Limits(long queueBudgetNanos, int deadlineMs) {
+            this.queueBudgetNanos = queueBudgetNanos;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    private static void serve(Socket socket, Handler handler, ExecutorService pool, Limits limits) {
+        connections.incrementAndGet();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            Answers answers = new Answers(socket,
+                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16)));
+            while (true) {
+                int length = in.readInt();
+                if (length != REQUEST_LENGTH) throw new IOException("Bad frame length " + length);
+                int requestId = in.readInt();
+                byte type = in.readByte();
+                int id = in.readInt();
+                int arg = in.readInt();
+                int budgetMs = in.readInt();
+
+                long arrived = System.nanoTime();
+                long deadline = Long.MAX_VALUE;
+                if (budgetMs > 0) deadline = arrived + TimeUnit.MILLISECONDS.toNanos(budgetMs);
+                if (limits.deadlineMs > 0) {
+                    deadline = Math.min(deadline, arrived + TimeUnit.MILLISECONDS.toNanos(limits.deadlineMs));
+                }
+                long expires = deadline;
+                try {
+                    pool.execute(() -> {
+                        long started = System.nanoTime();
+                        Reply reply;
+                        if (started - arrived > limits.queueBudgetNanos) {
+                            rejected.increment();
+                            reply = new Reply(503, UNAVAILABLE);
+                        } else if (expires != Long.MAX_VALUE && started - expires >= 0) {
+                            expired.increment();
+                            reply = new Reply(504, EXPIRED);
+                        } else {
+                            try {
+                                reply = handler.handle(type, id, arg);
+                            } catch (RuntimeException e) { // e.g. a full store, the HTTP API would answer 500 too
+                                reply = new Reply(500);
+                            }
+                        }
+                        answers.send(requestId, reply);
+                    });
+                } catch (RejectedExecutionException e) { // Too many waiting already
+                    rejected.increment();
+                    answers.send(requestId, new Reply(503, UNAVAILABLE));
+                }
+            }
+        } catch (EOFException e) {
+            // The caller closed the connection
+        } catch (IOException e) {
+            System.out.println("Binary connection closed: " + e.getMessage());
+        } finally {
+            connections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the answers of one connection. Whichever handler finds no one writing writes every answer queued so far
+     * and flushes once, so answers ready at the same time share a flush and no handler waits on another's write.
+     */
+    private static final class Answers {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final Queue<Answer> ready = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+
+        Answers(Socket socket, DataOutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void send(int requestId, Reply reply) {
+            requests.increment();
+            ready.add(new Answer(requestId, reply));
+            while (!ready.isEmpty() && writing.compareAndSet(false, true)) { // Also takes what came in meanwhile
+                try {
+                    Answer a;
+                    while ((a = ready.poll()) != null) {
+                        out.writeInt(4 + 2 + a.reply.body.length);
+                        out.writeInt(a.requestId);
+                        out.writeShort(a.reply.status);
+                        out.write(a.reply.body);
+                    }
+                    out.flush();
+                } catch (IOException e) { // The reader sees the closed socket and ends the connection
+                    ready.clear();
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // Closing anyway
+                    }
+                } finally {
+                    writing.set(false);
+                }
+            }
+        }
+    }
+
+    private static final class Answer {
+        final int requestId;
+        final Reply reply;
+
+        Answer(int requestId, Reply reply) {
+            this.requestId = requestId;
+            this.reply = reply;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small helpers for reading values out of config.json without a JSON library. Every service is compiled together
+ * with the files in src/Common, so these helpers are shared by all of them.
+ */
+final class Config {
+
+    private Config() {
+    }
+
+    /**
+     * Reads the whole config file into a single string.
+     * @param path Path to config.json.
+     * @return The file content with line breaks removed.
+     * @throws IOException If the file cannot be read.
+     */
+    static String readFile(String path) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = br.readLine()) != null) sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds the object value of a top level key, e.g. the whole {...} block for "ProductService".
+     * @param json The raw config.json content.
+     * @param name The key of the section.
+     * @return The section including its braces, or an empty string if it does not exist.
+     */
+    static String section(String json, String name) {
+        int i = json.indexOf("\"" + name + "\"");
+        if (i < 0) return "";
+        int start = json.indexOf('{', i);
+        if (start < 0) return "";
+
+        int depth = 0;
+        boolean inString = false;
+        for (int j = start; j < json.length(); j++) {
+            char c = json.charAt(j);
+            if (inString) {
+                if (c == '\\') j++;
+                else if (c == '"') inString = false;
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return json.substring(start, j + 1);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Reads a string or bare (number, boolean) value from a section.
+     * @param section A section returned by {@link #section}.
+     * @param key The key to look up.
+     * @param def The value returned when the key is missing.
+     * @return The value without quotes, or def.
+     */
+    static String getString(String section, String key, String def) {
+        int j = valueStart(section, key);
+        if (j < 0) return def;
+
+        if (section.charAt(j) == '"') {
+            int end = section.indexOf('"', j + 1);
+            return end < 0 ? def : section.substring(j + 1, end);
+        }
+        int end = j;
+        while (end < section.length() && ",}]".indexOf(section.charAt(end)) < 0) end++;
+        String v = section.substring(j, end).trim();
+        return v.isEmpty() ? def : v;
+    }
+
+    /**
+     * Reads an integer value from a section.
+     * @param section A section returned by {@link #section}.
+     * @param key The key to look up.
+     * @param def The value returned when the key is missing or not a number.
+     * @return The parsed value, or def.
+     */
+    static int getInt(String section, String key, int def) {
+        try {
+            return Integer.parseInt(getString(section, key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Reads a boolean value from a section.
+     * @param section A section returned by {@link #section}.
+     * @param key The key to look up.
+     * @param def The value returned when the key is missing.
+     * @return The parsed value, or def.
+     */
+    static boolean getBoolean(String section, String key, boolean def) {
+        return Boolean.parseBoolean(getString(section, key, String.valueOf(def)));
+    }
+
+    /**
+     * Reads an array of strings or numbers from a section, e.g. ["127.0.0.1:15000", "127.0.0.1:15001"].
+     * @param section A section returned by {@link #section}.
+     * @param key The key to look up.
+     * @return The elements without quotes, or an empty list if the key is missing.
+     */
+    static List<String> getList(String section, String key) {
+        List<String> out = new ArrayList<>();
+        int j = valueStart(section, key);
+        if (j < 0 || section.charAt(j) != '[') return out;
+
+        int end = section.indexOf(']', j);
+        if (end < 0) return out;
+        for (String item : section.substring(j + 1, end).split(",")) {
+            String v = item.trim().replace("\"", "");
+            if (!v.isEmpty()) out.add(v);
+        }
+        return out;
+    }
+
+    /**
+     * Finds the index of the first non-blank character of the value for key, or -1 if the key is missing.
+     */
+    private static int valueStart(String section, String key) {
+        int i = section.indexOf("\"" + key + "\"");
+        if (i < 0) return -1;
+        int colon = section.indexOf(':', i + key.length() + 2);
+        if (colon < 0) return -1;
+
+        int j = colon + 1;
+        while (j < section.length() && Character.isWhitespace(section.charAt(j))) j++;
+        return j < section.length() ? j : -1;
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Concurrent map from a primitive int id to a value, used for the users and products tables. Lookups never box the
+ * id and never lock. The map is split into segments, each an open addressing table (linear probing) over an
+ * AtomicIntegerArray of keys and an AtomicReferenceArray of values; writers lock only their segment.
+ *
+ * A slot is empty while its value is null. A writer sets the key before the value, and a reader reads the value
+ * before the key, so a reader that sees a value also sees its key. Removed entries leave a tombstone that only the
+ * same key may reuse, which means a slot's key never changes within one table; tombstones are dropped when a
+ * segment rehashes into a new table.
+ */
+final class IntConcurrentMap<V> {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final int SEGMENT_BITS = 6;
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+    IntConcurrentMap() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedSize Number of entries to size the segments for up front.
+     */
+    IntConcurrentMap(int expectedSize) {
+        int perSegment = Math.max(16, Integer.highestOneBit(Math.max(1, expectedSize / segments.length) * 2 - 1) * 2);
+        for (int i = 0; i < segments.length; i++) segments[i] = new Segment(perSegment);
+    }
+
+    /**
+     * @param key The id.
+     * @return The value, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int h = hash(key);
+        Table t = segmentFor(h).table;
+        for (int i = (h >>> SEGMENT_BITS) & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+            Object v = t.values.get(i);
+            if (v == null) return null;
+            if (v != TOMBSTONE && t.keys.get(i) == key) return (V) v;
+        }
+        return null;
+    }
+
+    /**
+     * @return The previous value, or null if there was none.
+     */
+    V put(int key, V value) {
+        Segment s = segmentFor(hash(key));
+        synchronized (s) {
+            return s.put(key, value, false);
+        }
+    }
+
+    /**
+     * @return The current value if there is one (and nothing was stored), otherwise null.
+     */
+    V putIfAbsent(int key, V value) {
+        Segment s = segmentFor(hash(key));
+        synchronized (s) {
+            return s.put(key, value, true);
+        }
+    }
+
+    /**
+     * @return The removed value, or null if there was none.
+     */
+    V remove(int key) {
+        Segment s = segmentFor(hash(key));
+        synchronized (s) {
+            return s.remove(key, null);
+        }
+    }
+
+    /**
+     * Removes an entry only if it still maps to the given value (compared by identity).
+     * @return True if it was removed.
+     */
+    boolean remove(int key, V expected) {
+        Segment s = segmentFor(hash(key));
+        synchronized (s) {
+            return s.remove(key, expected) != null;
+        }
+    }
+
+    /**
+     * Atomically replaces an existing value. Runs under the segment lock, so change must be quick.
+     * @param change Gets the current value and returns its replacement, or null to keep it.
+     * @return The replacement, or null if the key is missing or change returned null.
+     */
+    @SuppressWarnings("unchecked")
+    V update(int key, UnaryOperator<V> change) {
+        Segment s = segmentFor(hash(key));
+        synchronized (s) {
+            int i = s.indexOf(key);
+            if (i < 0) return null;
+            V next = change.apply((V) s.table.values.get(i));
+            if (next != null) s.table.values.set(i, next);
+            return next;
+        }
+    }
+
+    int size() {
+        int n = 0;
+        for (Segment s : segments) n += s.size;
+        return n;
+    }
+
+    /**
+     * Visits every value without locking. Entries changed during the walk may or may not be seen.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super V> action) {
+        for (Segment s : segments) {
+            Table t = s.table;
+            for (int i = 0; i <= t.mask; i++) {
+                Object v = t.values.get(i);
+                if (v != null && v != TOMBSTONE) action.accept((V) v);
+            }
+        }
+    }
+
+    private Segment segmentFor(int h) {
+        return segments[h & (segments.length - 1)];
+    }
+
+    // Low bits pick the segment and the rest the slot, so consecutive ids spread over the segments and then sit
+    // next to each other inside one, which keeps lookups of nearby ids in the same cache lines
+    private static int hash(int key) {
+        return key ^ (key >>> 16);
+    }
+
+    private static final class Table {
+        final AtomicIntegerArray keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicIntegerArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    // Writes are made while holding the segment's monitor
+    private static final class Segment {
+        volatile Table table;
+        volatile int size;
+        int used; // Live entries plus tombstones
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        int indexOf(int key) {
+            Table t = table;
+            int h = hash(key) >>> SEGMENT_BITS;
+            for (int i = h & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+                Object v = t.values.get(i);
+                if (v == null) return -1;
+                if (v != TOMBSTONE && t.keys.get(i) == key) return i;
+            }
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> V put(int key, V value, boolean onlyIfAbsent) {
+            if (used + 1 > (table.mask + 1) * 3 / 4) rehash();
+            Table t = table;
+            int h = hash(key) >>> SEGMENT_BITS;
+            for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+                Object v = t.values.get(i);
+                if (v == null) {
+                    t.keys.set(i, key);
+                    t.values.set(i, value);
+                    used++;
+                    size++;
+                    return null;
+                }
+                if (t.keys.get(i) == key) { // Live entry or this key's own tombstone
+                    if (v == TOMBSTONE) {
+                        t.values.set(i, value);
+                        size++;
+                        return null;
+                    }
+                    if (!onlyIfAbsent) t.values.set(i, value);
+                    return (V) v;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> V remove(int key, V expected) {
+            int i = indexOf(key);
+            if (i < 0) return null;
+            Object v = table.values.get(i);
+            if (expected != null && v != expected) return null;
+            table.values.set(i, TOMBSTONE);
+            size--;
+            return (V) v;
+        }
+
+        // Copies the live entries into a fresh table, doubling it if it is more than half full of them
+        private void rehash() {
+            Table old = table;
+            int capacity = old.mask + 1;
+            if (size + 1 > capacity / 2) capacity *= 2;
+            Table t = new Table(capacity);
+            for (int i = 0; i <= old.mask; i++) {
+                Object v = old.values.get(i);
+                if (v == null || v == TOMBSTONE) continue;
+                int key = old.keys.get(i);
+                int j = (hash(key) >>> SEGMENT_BITS) & t.mask;
+                while (t.values.get(j) != null) j = (j + 1) & t.mask;
+                t.keys.set(j, key);
+                t.values.set(j, v);
+            }
+            used = size;
+            table = t;
+        }
+    }
+}
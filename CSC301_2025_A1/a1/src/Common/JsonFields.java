@@ -0,0 +1,85 @@
+/**
+ * Reusable holder for the top level fields of one JSON object, filled by {@link JsonReader}. Keys, values and whether
+ * each value was a JSON string are kept in parallel arrays that grow once and are then reused, so parsing a request
+ * body does not allocate a map entry or a String[] per pair.
+ */
+final class JsonFields {
+
+    private static final ThreadLocal<JsonFields> LOCAL = ThreadLocal.withInitial(JsonFields::new);
+
+    private String[] keys = new String[8];
+    private String[] values = new String[8];
+    private boolean[] strings = new boolean[8];
+    private int size;
+
+    /**
+     * @return This thread's holder, emptied. Only valid until the thread parses the next body.
+     */
+    static JsonFields forThread() {
+        JsonFields fields = LOCAL.get();
+        fields.clear();
+        return fields;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) { // Drop references so old bodies can be collected
+            keys[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    void add(String key, String value, boolean isString) {
+        if (size == keys.length) {
+            keys = java.util.Arrays.copyOf(keys, size * 2);
+            values = java.util.Arrays.copyOf(values, size * 2);
+            strings = java.util.Arrays.copyOf(strings, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        strings[size] = isString;
+        size++;
+    }
+
+    /**
+     * @param key The field name.
+     * @return The value with quotes and escapes removed, nested objects/arrays as raw JSON text, or null if missing.
+     * When a key appears twice the last value wins, like it did with the old HashMap based parsing.
+     */
+    String get(String key) {
+        int i = indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @param key The field name.
+     * @return True if the field exists and its value was a quoted JSON string.
+     */
+    boolean isString(String key) {
+        int i = indexOf(key);
+        return i >= 0 && strings[i];
+    }
+
+    int size() {
+        return size;
+    }
+
+    String key(int i) {
+        return keys[i];
+    }
+
+    String value(int i) {
+        return values[i];
+    }
+
+    private int indexOf(String key) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+}
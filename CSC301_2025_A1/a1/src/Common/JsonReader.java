@@ -0,0 +1,376 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Single pass JSON tokenizer shared by all services. It reads the request stream once into a per-thread buffer,
+ * decodes UTF-8 straight from the bytes and handles escapes, so commas, colons and quotes inside values no longer
+ * break parsing. Only the top level fields of an object are split out; nested objects and arrays are kept as raw
+ * JSON text and can be parsed again with {@link #parse(String, JsonFields)} or {@link #forEachObject}.
+ */
+final class JsonReader {
+
+    private static final int KEEP_BUFFER = 64 * 1024; // Bigger buffers are dropped after use instead of kept per thread
+
+    private static final ThreadLocal<byte[]> BYTES = ThreadLocal.withInitial(() -> new byte[4096]);
+    private static final ThreadLocal<char[]> CHARS = ThreadLocal.withInitial(() -> new char[256]);
+
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+    private char[] chars;
+
+    private JsonReader(byte[] buf, int off, int len) {
+        this.buf = buf;
+        this.pos = off;
+        this.end = off + len;
+        this.chars = CHARS.get();
+    }
+
+    /**
+     * Reads a whole stream and parses it as one JSON object.
+     * @param in The request body, closed afterwards.
+     * @param out Holder to fill, cleared first.
+     * @return True if the body was a well formed object; on false out is left empty.
+     * @throws IOException If reading the stream fails.
+     */
+    static boolean read(InputStream in, JsonFields out) throws IOException {
+        byte[] b = BYTES.get();
+        int n = 0;
+        try (InputStream is = in) {
+            int r;
+            while ((r = is.read(b, n, b.length - n)) > 0) {
+                n += r;
+                if (n == b.length) b = java.util.Arrays.copyOf(b, b.length * 2);
+            }
+        }
+        if (b.length <= KEEP_BUFFER) BYTES.set(b);
+        return parse(b, 0, n, out);
+    }
+
+    /**
+     * Parses one JSON object from part of a byte array.
+     * @param b UTF-8 bytes.
+     * @param off Start of the object.
+     * @param len Number of bytes.
+     * @param out Holder to fill, cleared first.
+     * @return True if the bytes were a well formed object; on false out is left empty.
+     */
+    static boolean parse(byte[] b, int off, int len, JsonFields out) {
+        out.clear();
+        JsonReader r = new JsonReader(b, off, len);
+        try {
+            r.readObject(out);
+            r.skipWhitespace();
+            if (r.pos != r.end) throw new IllegalArgumentException("Trailing data");
+            return true;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            out.clear();
+            return false;
+        } finally {
+            if (r.chars.length <= KEEP_BUFFER) CHARS.set(r.chars);
+        }
+    }
+
+    /**
+     * Parses one JSON object held in a string, e.g. a nested value or a downstream response body.
+     * @param json The JSON text.
+     * @param out Holder to fill, cleared first.
+     * @return True if the text was a well formed object.
+     */
+    static boolean parse(String json, JsonFields out) {
+        byte[] b = json.getBytes(StandardCharsets.UTF_8);
+        return parse(b, 0, b.length, out);
+    }
+
+    /**
+     * Walks a JSON array of objects, e.g. the raw value of an "orders" field, reusing one holder for every element.
+     * @param jsonArray The raw array text.
+     * @param fields Holder reused for each element, must not be the one holding jsonArray itself.
+     * @param visitor Called once per element, in order.
+     * @return False if the text is not an array of well formed objects. Elements before the error were visited.
+     */
+    static boolean forEachObject(String jsonArray, JsonFields fields, Consumer<JsonFields> visitor) {
+        byte[] b = jsonArray.getBytes(StandardCharsets.UTF_8);
+        JsonReader r = new JsonReader(b, 0, b.length);
+        try {
+            r.skipWhitespace();
+            r.expect('[');
+            r.skipWhitespace();
+            if (r.peek() == ']') {
+                r.pos++;
+            } else {
+                while (true) {
+                    fields.clear();
+                    r.readObject(fields);
+                    visitor.accept(fields);
+                    r.skipWhitespace();
+                    byte c = r.next();
+                    if (c == ']') break;
+                    if (c != ',') throw new IllegalArgumentException("Expected , or ]");
+                }
+            }
+            r.skipWhitespace();
+            return r.pos == r.end;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            return false;
+        } finally {
+            if (r.chars.length <= KEEP_BUFFER) CHARS.set(r.chars);
+        }
+    }
+
+    /**
+     * Streams newline delimited JSON, one object per line, without holding more than one line in memory.
+     * @param in The request body, closed afterwards.
+     * @param fields Holder reused for every line.
+     * @param visitor Called once per non-blank line, in order, with the fields of that line. A malformed line is
+     *                passed with no fields.
+     * @throws IOException If reading the stream fails.
+     */
+    static void readLines(InputStream in, JsonFields fields, Consumer<JsonFields> visitor) throws IOException {
+        byte[] b = new byte[64 * 1024];
+        int start = 0; // First byte of the current line
+        int n = 0;     // Bytes in the buffer
+        try (InputStream is = in) {
+            while (true) {
+                if (n == b.length) {
+                    if (start > 0) { // Move the unfinished line to the front
+                        System.arraycopy(b, start, b, 0, n - start);
+                        n -= start;
+                        start = 0;
+                    } else { // One line longer than the buffer
+                        b = java.util.Arrays.copyOf(b, b.length * 2);
+                    }
+                }
+                int r = is.read(b, n, b.length - n);
+                if (r < 0) break;
+
+                int scanFrom = n;
+                n += r;
+                for (int i = scanFrom; i < n; i++) {
+                    if (b[i] != '\n') continue;
+                    visitLine(b, start, i - start, fields, visitor);
+                    start = i + 1;
+                }
+            }
+        }
+        visitLine(b, start, n - start, fields, visitor);
+    }
+
+    private static void visitLine(byte[] b, int off, int len, JsonFields fields, Consumer<JsonFields> visitor) {
+        int end = off + len;
+        while (off < end && (b[off] == ' ' || b[off] == '\t' || b[off] == '\r')) off++;
+        if (off == end) return; // Blank line
+        parse(b, off, end - off, fields);
+        visitor.accept(fields);
+    }
+
+    /**
+     * Reads a JSON array of integers, e.g. the raw value of an "ids" field.
+     * @param jsonArray The raw array text.
+     * @return The numbers in order, or null if the text is not an array of ints.
+     */
+    static int[] readIntArray(String jsonArray) {
+        byte[] b = jsonArray.getBytes(StandardCharsets.US_ASCII);
+        JsonReader r = new JsonReader(b, 0, b.length);
+        int[] out = new int[16];
+        int n = 0;
+        try {
+            r.skipWhitespace();
+            r.expect('[');
+            r.skipWhitespace();
+            if (r.peek() == ']') {
+                r.pos++;
+            } else {
+                while (true) {
+                    r.skipWhitespace();
+                    if (n == out.length) out = java.util.Arrays.copyOf(out, n * 2);
+                    out[n++] = Integer.parseInt(r.readLiteral());
+                    r.skipWhitespace();
+                    byte c = r.next();
+                    if (c == ']') break;
+                    if (c != ',') throw new IllegalArgumentException("Expected , or ]");
+                }
+            }
+            r.skipWhitespace();
+            return r.pos == r.end ? java.util.Arrays.copyOf(out, n) : null;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) { // Includes NumberFormatException
+            return null;
+        } finally {
+            if (r.chars.length <= KEEP_BUFFER) CHARS.set(r.chars);
+        }
+    }
+
+    /**
+     * Reads a JSON array of strings, e.g. the raw value of a "shards" field.
+     * @param jsonArray The raw array text.
+     * @return The strings in order, or null if the text is not an array of strings.
+     */
+    static List<String> readStringArray(String jsonArray) {
+        byte[] b = jsonArray.getBytes(StandardCharsets.UTF_8);
+        JsonReader r = new JsonReader(b, 0, b.length);
+        List<String> out = new ArrayList<>();
+        try {
+            r.skipWhitespace();
+            r.expect('[');
+            r.skipWhitespace();
+            if (r.peek() == ']') {
+                r.pos++;
+            } else {
+                while (true) {
+                    r.skipWhitespace();
+                    r.expect('"');
+                    out.add(r.readString());
+                    r.skipWhitespace();
+                    byte c = r.next();
+                    if (c == ']') break;
+                    if (c != ',') throw new IllegalArgumentException("Expected , or ]");
+                }
+            }
+            r.skipWhitespace();
+            return r.pos == r.end ? out : null;
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        } finally {
+            if (r.chars.length <= KEEP_BUFFER) CHARS.set(r.chars);
+        }
+    }
+
+    private void readObject(JsonFields out) {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            String key = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            byte c = peek();
+            if (c == '"') {
+                pos++;
+                out.add(key, readString(), true);
+            } else if (c == '{' || c == '[') {
+                int start = pos;
+                skipNested();
+                out.add(key, new String(buf, start, pos - start, StandardCharsets.UTF_8), false);
+            } else {
+                out.add(key, readLiteral(), false);
+            }
+
+            skipWhitespace();
+            byte sep = next();
+            if (sep == '}') return;
+            if (sep != ',') throw new IllegalArgumentException("Expected , or }");
+        }
+    }
+
+    // Reads the rest of a string after its opening quote, decoding UTF-8 and escapes into the char buffer
+    private String readString() {
+        int n = 0;
+        while (true) {
+            int b = next() & 0xFF;
+            if (b == '"') return new String(chars, 0, n);
+            if (n + 2 > chars.length) chars = java.util.Arrays.copyOf(chars, chars.length * 2);
+
+            if (b == '\\') {
+                byte e = next();
+                switch (e) {
+                    case '"': chars[n++] = '"'; break;
+                    case '\\': chars[n++] = '\\'; break;
+                    case '/': chars[n++] = '/'; break;
+                    case 'b': chars[n++] = '\b'; break;
+                    case 'f': chars[n++] = '\f'; break;
+                    case 'n': chars[n++] = '\n'; break;
+                    case 'r': chars[n++] = '\r'; break;
+                    case 't': chars[n++] = '\t'; break;
+                    case 'u': chars[n++] = (char) (hex(next()) << 12 | hex(next()) << 8 | hex(next()) << 4 | hex(next())); break;
+                    default: throw new IllegalArgumentException("Bad escape");
+                }
+            } else if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if (b >= 0xC0 && b < 0xE0) {
+                chars[n++] = (char) ((b & 0x1F) << 6 | cont());
+            } else if (b >= 0xE0 && b < 0xF0) {
+                chars[n++] = (char) ((b & 0x0F) << 12 | cont() << 6 | cont());
+            } else if (b >= 0xF0 && b < 0xF8) {
+                int cp = (b & 0x07) << 18 | cont() << 12 | cont() << 6 | cont();
+                chars[n++] = Character.highSurrogate(cp);
+                chars[n++] = Character.lowSurrogate(cp);
+            } else {
+                throw new IllegalArgumentException("Bad UTF-8");
+            }
+        }
+    }
+
+    // Numbers, true, false and null, kept as their text so each service can validate them as before
+    private String readLiteral() {
+        int start = pos;
+        while (pos < end) {
+            byte c = buf[pos];
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') break;
+            pos++;
+        }
+        if (pos == start) throw new IllegalArgumentException("Missing value");
+        return new String(buf, start, pos - start, StandardCharsets.US_ASCII);
+    }
+
+    // Moves past a nested object or array, including strings that contain brackets
+    private void skipNested() {
+        int depth = 0;
+        do {
+            byte c = next();
+            if (c == '"') {
+                while (true) {
+                    byte s = next();
+                    if (s == '\\') pos++;
+                    else if (s == '"') break;
+                }
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    private int cont() {
+        int b = next() & 0xFF;
+        if ((b & 0xC0) != 0x80) throw new IllegalArgumentException("Bad UTF-8");
+        return b & 0x3F;
+    }
+
+    private static int hex(byte c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        throw new IllegalArgumentException("Bad \\u escape");
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t' || buf[pos] == '\n' || buf[pos] == '\r')) pos++;
+    }
+
+    private void expect(char c) {
+        if (next() != c) throw new IllegalArgumentException("Expected " + c);
+    }
+
+    private byte peek() {
+        if (pos >= end) throw new IllegalArgumentException("Unexpected end");
+        return buf[pos];
+    }
+
+    private byte next() {
+        if (pos >= end) throw new IllegalArgumentException("Unexpected end");
+        return buf[pos++];
+    }
+}
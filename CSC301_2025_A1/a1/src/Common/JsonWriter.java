@@ -0,0 +1,38 @@
+/**
+ * Helpers for building JSON text by hand. Values are escaped so names or descriptions with quotes, backslashes or
+ * control characters still produce valid JSON.
+ */
+final class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonWriter() {
+    }
+
+    /**
+     * Appends s as a quoted JSON string.
+     * @param sb The builder to append to.
+     * @param s The raw value.
+     * @return sb, for chaining.
+     */
+    static StringBuilder appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"');
+    }
+}
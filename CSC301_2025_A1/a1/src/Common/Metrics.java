@@ -0,0 +1,324 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request counters, latency histograms and gauges for one service, served at /metrics in the Prometheus text format.
+ *
+ * Every context passed to instrument counts its requests by route, method, command and status code and times them
+ * from the moment the server hands the request over until the response is closed, so calls that answer later from a
+ * completion callback are timed to the end too. Handlers name the command of a POST with tagCommand. Each request
+ * also gets a Trace carrying its X-Request-Id and phase timings.
+ *
+ * Recording takes no lock: counters are LongAdders and a histogram is an AtomicLongArray of log-scaled buckets
+ * (four per power of two, so a reported quantile is within about 12% of the real value). The maps holding them are
+ * only written the first time a label combination shows up.
+ */
+final class Metrics {
+
+    private static final int MAX_COMMANDS = 32; // Distinct command labels kept, the rest are counted as "other"
+
+    private static final Family HTTP = new Family("http_request",
+            "Requests handled, by route, method, command and status code.");
+    private static final Family DOWNSTREAM = new Family("downstream_request",
+            "Calls made to other services, by host, route, method and status code.");
+    private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private static final Set<String> commands = ConcurrentHashMap.newKeySet();
+    private static final LongAdder inFlight = new LongAdder();
+
+    static {
+        gauge("http_requests_in_flight", "Requests received and not answered yet.", inFlight::sum);
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Counts and times every request of a context, and rejects the ones Admission has no room for.
+     * @param context The context returned by HttpServer.createContext.
+     */
+    static void instrument(HttpContext context) {
+        context.getFilters().add(new Recorder());
+        context.getFilters().add(Admission.FILTER); // After the recorder, so rejections are counted as 503s
+    }
+
+    /**
+     * Adds the /metrics context, and /metrics/slow listing the recent slow requests, to a server.
+     * @param server The service's server.
+     * @param serviceConfig The service's section of config.json, for "slowRequestMs".
+     */
+    static void serve(HttpServer server, String serviceConfig) {
+        Trace.setSlowThreshold(Config.getInt(serviceConfig, "slowRequestMs", 100));
+        server.createContext("/metrics", exchange -> send(exchange, "text/plain; version=0.0.4", render()));
+        server.createContext("/metrics/slow", exchange -> send(exchange, "application/json", Trace.slowJson()));
+    }
+
+    private static void send(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+        exchange.close();
+    }
+
+    /**
+     * Labels the current request with its command. Does nothing for a context that is not instrumented.
+     * @param exchange The current request.
+     * @param command The "command" field of the request body, may be null.
+     */
+    static void tagCommand(HttpExchange exchange, String command) {
+        OutputStream os = exchange.getResponseBody();
+        if (os instanceof RecordingStream) ((RecordingStream) os).command = commandLabel(command);
+    }
+
+    /**
+     * @param exchange The current request.
+     * @return Its trace, or Trace.NONE if its context is not instrumented.
+     */
+    static Trace trace(HttpExchange exchange) {
+        OutputStream os = exchange.getResponseBody();
+        return os instanceof RecordingStream ? ((RecordingStream) os).trace : Trace.NONE;
+    }
+
+    /**
+     * Records one call to another service.
+     * @param host The "host:port" called.
+     * @param route The first path segment, e.g. "/user".
+     * @param method The HTTP method.
+     * @param code The status code, or 0 if the call failed without a response.
+     * @param nanos Time from sending the request until it completed.
+     */
+    static void recordCall(String host, String route, String method, int code, long nanos) {
+        DOWNSTREAM.record("host=\"" + host + "\",route=\"" + route + "\",method=\"" + method + "\"",
+                code == 0 ? "error" : Integer.toString(code), nanos);
+    }
+
+    /**
+     * Registers a value read at every scrape. Registering a name again replaces it.
+     * @param name The metric name.
+     * @param help One line description.
+     * @param value Supplies the current value.
+     */
+    static void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * @return Every metric in the Prometheus text exposition format.
+     */
+    static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        HTTP.render(sb);
+        DOWNSTREAM.render(sb);
+        for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+            sb.append("# HELP ").append(e.getKey()).append(' ').append(e.getValue().help).append('\n');
+            sb.append("# TYPE ").append(e.getKey()).append(" gauge\n");
+            sb.append(e.getKey()).append(' ').append(e.getValue().value.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Commands come from request bodies, so only short lowercase words are used as labels, and only so many of them
+    private static String commandLabel(String command) {
+        if (command == null) return "none";
+        if (command.isEmpty() || command.length() > 32) return "other";
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if ((c < 'a' || c > 'z') && c != ' ' && c != '_') return "other";
+        }
+        if (commands.contains(command)) return command;
+        if (commands.size() >= MAX_COMMANDS) return "other";
+        commands.add(command);
+        return command;
+    }
+
+    /**
+     * Swaps in a response stream that records the request once it is closed. HttpExchange.close closes it as well,
+     * so every answered request is recorded exactly once.
+     */
+    private static final class Recorder extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            String id = Trace.requestId(exchange.getRequestHeaders().getFirst(Trace.HEADER));
+            exchange.getResponseHeaders().set(Trace.HEADER, id);
+            RecordingStream stream = new RecordingStream(exchange, exchange.getResponseBody(), new Trace(id));
+            exchange.setStreams(null, stream);
+            inFlight.increment();
+            try {
+                chain.doFilter(exchange);
+            } catch (IOException | RuntimeException e) { // The server drops the connection without closing the stream
+                stream.record();
+                throw e;
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Records request counts and latencies";
+        }
+    }
+
+    private static final class RecordingStream extends FilterOutputStream {
+        private final HttpExchange exchange;
+        private final Trace trace;
+        private volatile String command = "none";
+        private boolean recorded; // Only the handler answering the request closes it
+
+        RecordingStream(HttpExchange exchange, OutputStream out, Trace trace) {
+            super(out);
+            this.exchange = exchange;
+            this.trace = trace;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len); // FilterOutputStream would write one byte at a time
+        }
+
+        @Override
+        public void close() throws IOException {
+            record();
+            super.close();
+        }
+
+        synchronized void record() {
+            if (recorded) return;
+            recorded = true;
+            inFlight.decrement();
+            int code = exchange.getResponseCode();
+            long elapsed = System.nanoTime() - trace.start;
+            String route = exchange.getHttpContext().getPath();
+            String method = exchange.getRequestMethod();
+            HTTP.record("route=\"" + route + "\",method=\"" + method + "\",command=\"" + command + "\"",
+                    code < 0 ? "none" : Integer.toString(code), elapsed);
+            trace.finish(route, method, command, code, elapsed);
+        }
+    }
+
+    /**
+     * A request counter and a latency summary sharing one name prefix, e.g. http_request_total and
+     * http_request_duration_seconds.
+     */
+    private static final class Family {
+        final String name;
+        final String help;
+        final Map<String, LongAdder> counts = new ConcurrentSkipListMap<>();   // Labels including code
+        final Map<String, Histogram> durations = new ConcurrentSkipListMap<>(); // Labels without code
+
+        Family(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        void record(String labels, String code, long nanos) {
+            String counted = labels + ",code=\"" + code + "\"";
+            LongAdder count = counts.get(counted);
+            if (count == null) count = counts.computeIfAbsent(counted, k -> new LongAdder());
+            count.increment();
+
+            Histogram h = durations.get(labels);
+            if (h == null) h = durations.computeIfAbsent(labels, k -> new Histogram());
+            h.record(nanos);
+        }
+
+        void render(StringBuilder sb) {
+            if (counts.isEmpty()) return;
+            sb.append("# HELP ").append(name).append("s_total ").append(help).append('\n');
+            sb.append("# TYPE ").append(name).append("s_total counter\n");
+            for (Map.Entry<String, LongAdder> e : counts.entrySet()) {
+                sb.append(name).append("s_total{").append(e.getKey()).append("} ").append(e.getValue().sum()).append('\n');
+            }
+
+            String summary = name + "_duration_seconds";
+            sb.append("# HELP ").append(summary).append(" Latency of the requests above.\n");
+            sb.append("# TYPE ").append(summary).append(" summary\n");
+            for (Map.Entry<String, Histogram> e : durations.entrySet()) {
+                long[] buckets = e.getValue().snapshot();
+                long total = 0;
+                for (long b : buckets) total += b;
+                for (double q : new double[] {0.5, 0.99, 0.999}) {
+                    sb.append(summary).append('{').append(e.getKey()).append(",quantile=\"").append(q).append("\"} ")
+                            .append(seconds(Histogram.quantile(buckets, total, q))).append('\n');
+                }
+                sb.append(summary).append("_sum{").append(e.getKey()).append("} ")
+                        .append(seconds(e.getValue().sum.sum())).append('\n');
+                sb.append(summary).append("_count{").append(e.getKey()).append("} ").append(total).append('\n');
+            }
+        }
+
+        private static String seconds(long nanos) {
+            return Double.toString(nanos / 1e9);
+        }
+    }
+
+    /**
+     * Log-scaled histogram of nanosecond durations. Values below 4 get their own bucket; above that a bucket covers
+     * a quarter of a power of two, numbered 4 * log2(value) plus the next two bits.
+     */
+    private static final class Histogram {
+        private static final int BUCKETS = 256;
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(bucket(nanos));
+            sum.add(nanos);
+        }
+
+        long[] snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+            return copy;
+        }
+
+        static int bucket(long v) {
+            if (v < 4) return (int) v;
+            int log = 63 - Long.numberOfLeadingZeros(v);
+            return log * 4 + (int) ((v >>> (log - 2)) & 3);
+        }
+
+        // Middle of the bucket holding the q-th value, or 0 if nothing was recorded
+        static long quantile(long[] buckets, long total, double q) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    if (i < 4) return i;
+                    int log = i / 4;
+                    long low = (long) (4 + i % 4) << (log - 2);
+                    return low + (1L << (log - 2)) / 2;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static final class Gauge {
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
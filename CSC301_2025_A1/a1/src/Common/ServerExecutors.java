@@ -0,0 +1,76 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Builds the executor an HttpServer runs its handlers on, picked per service with the "executor" key of its
+ * config.json section:
+ * "fixed" (default): a pool of "threads" threads, 20 unless set.
+ * "virtual": a new virtual thread per request, needs Java 21 or newer, otherwise falls back to "fixed".
+ * "work-stealing": a ForkJoinPool with a parallelism of "threads".
+ * The pool's busy threads and queued tasks are published as gauges on /metrics, and Admission bounds how many
+ * requests may wait for it.
+ */
+final class ServerExecutors {
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * @param serviceConfig The service's section of config.json.
+     * @return The executor to pass to HttpServer.setExecutor.
+     */
+    static Executor create(String serviceConfig) {
+        return Admission.limit(watch(build(serviceConfig)), serviceConfig);
+    }
+
+    private static ExecutorService build(String serviceConfig) {
+        String mode = Config.getString(serviceConfig, "executor", "fixed");
+        int threads = Config.getInt(serviceConfig, "threads", 20);
+
+        switch (mode) {
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) return virtual;
+                System.err.println("Virtual threads need Java 21+, using a fixed pool of " + threads + " threads");
+                return Executors.newFixedThreadPool(threads);
+            case "work-stealing":
+                return Executors.newWorkStealingPool(threads);
+            case "fixed":
+                return Executors.newFixedThreadPool(threads);
+            default:
+                System.err.println("Unknown executor \"" + mode + "\", using a fixed pool of " + threads + " threads");
+                return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    // A virtual thread executor has no queue or pool to report, http_requests_in_flight covers it
+    private static ExecutorService watch(ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            Metrics.gauge("executor_active_threads", "Handler threads running a task.", pool::getActiveCount);
+            Metrics.gauge("executor_pool_threads", "Handler threads started.", pool::getPoolSize);
+            Metrics.gauge("executor_queue_depth", "Tasks waiting for a handler thread.", () -> pool.getQueue().size());
+        } else if (executor instanceof ForkJoinPool) {
+            ForkJoinPool pool = (ForkJoinPool) executor;
+            Metrics.gauge("executor_active_threads", "Handler threads running a task.", pool::getActiveThreadCount);
+            Metrics.gauge("executor_pool_threads", "Handler threads started.", pool::getPoolSize);
+            Metrics.gauge("executor_queue_depth", "Tasks waiting for a handler thread.",
+                    () -> pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+        }
+        return executor;
+    }
+
+    // Looked up by reflection so the code still compiles and runs on the Java 17 lab machines
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hash ring that maps a product id to the shard owning it. Every shard ("host:port") is placed on a 64 bit
+ * ring at POINTS_PER_SHARD pseudo-random points, and an id belongs to the shard of the first point at or after the
+ * id's own hash. Adding a shard therefore only moves the ids that fall just before its points, about 1/N of them,
+ * and every one of them moves to the new shard. The ring is immutable; changing the shards builds a new one.
+ */
+final class ShardRing {
+
+    private static final int POINTS_PER_SHARD = 160;
+
+    private final List<String> shards;
+    private final long[] points; // Sorted
+    private final int[] owners;  // Index into shards of each point
+
+    /**
+     * @param shards The shard addresses, at least one. Their order does not change the ownership of any id.
+     */
+    ShardRing(List<String> shards) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("A shard ring needs at least one shard");
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+
+        int n = shards.size() * POINTS_PER_SHARD;
+        long[] unsorted = new long[n];
+        for (int s = 0; s < shards.size(); s++) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) unsorted[s * POINTS_PER_SHARD + i] = hash(shards.get(s) + "#" + i);
+        }
+        // Sort point indexes by hash, then lay out both arrays in that order
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        points = new long[n];
+        owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = unsorted[order[i]];
+            owners[i] = order[i] / POINTS_PER_SHARD;
+        }
+    }
+
+    /**
+     * @return The shard addresses, in the order given.
+     */
+    List<String> shards() {
+        return shards;
+    }
+
+    /**
+     * @param id The product id.
+     * @return The address of the shard owning it.
+     */
+    String owner(int id) {
+        return shards.get(ownerIndex(id));
+    }
+
+    /**
+     * @param id The product id.
+     * @return The index in shards() of the shard owning it.
+     */
+    int ownerIndex(int id) {
+        long h = mix(id);
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i]; // Past the last point wraps around to the first
+    }
+
+    /**
+     * @param shard A new shard address.
+     * @return A ring with this ring's shards plus shard.
+     */
+    ShardRing with(String shard) {
+        List<String> more = new ArrayList<>(shards);
+        more.add(shard);
+        return new ShardRing(more);
+    }
+
+    // FNV-1a over the chars, then the mix below so nearby strings land far apart
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // Finalizer of MurmurHash3, spreads consecutive ids over the whole ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,167 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The id and phase timings of one request. Every instrumented request (see Metrics.instrument) gets one: the id is
+ * taken from the X-Request-Id header if the caller sent a usable one, otherwise a new one is made, and it is echoed
+ * in the response. The OrderService forwards it on its downstream calls, so one id ties the hops of an order together.
+ *
+ * Handlers add the time they spend parsing the body, waiting on other services, in storage and writing the response.
+ * Requests slower than "slowRequestMs" (100 unless set in the service's config section) are kept with their
+ * breakdown in a ring of the most recent ones, served as JSON at /metrics/slow.
+ *
+ * A trace can also have a deadline, after which its caller has given up (see Admission). It travels in the
+ * X-Deadline-Ms header as the milliseconds left, so the services' clocks need not agree.
+ */
+final class Trace {
+
+    static final String HEADER = "X-Request-Id";
+    static final String DEADLINE_HEADER = "X-Deadline-Ms";
+    static final int PARSE = 0, DOWNSTREAM = 1, STORAGE = 2, SERIALIZE = 3;
+    private static final String[] PHASES = {"parse", "downstream", "storage", "serialize"};
+
+    /** Stands in for requests outside an instrumented context, adding to it does nothing. */
+    static final Trace NONE = new Trace("");
+
+    private static final int SLOW_CAPACITY = 256;
+    private static final AtomicReferenceArray<Trace> slow = new AtomicReferenceArray<>(SLOW_CAPACITY);
+    private static final AtomicLong slowCount = new AtomicLong();
+    private static volatile long slowNanos = 100_000_000L;
+
+    final String id;
+    final long start = System.nanoTime();
+    private final AtomicLongArray phases = new AtomicLongArray(PHASES.length); // Downstream calls may finish together
+    private volatile long deadline = Long.MAX_VALUE; // System.nanoTime() it ends at
+
+    // Set once by finish, before the trace is published to the ring
+    private String route;
+    private String method;
+    private String command;
+    private int code;
+    private long total;
+    private long finishedAt;
+
+    Trace(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @param exchange The current request.
+     * @return Its trace, or NONE if its context is not instrumented.
+     */
+    static Trace of(HttpExchange exchange) {
+        return Metrics.trace(exchange);
+    }
+
+    /**
+     * @param incoming The X-Request-Id header sent by the caller, may be null.
+     * @return The incoming id if it is 1 to 64 letters, digits, '.', '_' or '-', otherwise a new random one.
+     */
+    static String requestId(String incoming) {
+        if (incoming != null && !incoming.isEmpty() && incoming.length() <= 64) {
+            boolean ok = true;
+            for (int i = 0; i < incoming.length() && ok; i++) {
+                char c = incoming.charAt(i);
+                ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                        || c == '.' || c == '_' || c == '-';
+            }
+            if (ok) return incoming;
+        }
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE); // Always 16 digits
+    }
+
+    /**
+     * @param ms Requests taking at least this long are kept for /metrics/slow.
+     */
+    static void setSlowThreshold(int ms) {
+        slowNanos = ms * 1_000_000L;
+    }
+
+    /**
+     * Adds the time since a phase started.
+     * @param phase PARSE, DOWNSTREAM, STORAGE or SERIALIZE.
+     * @param since System.nanoTime() when the phase started.
+     * @return The current System.nanoTime(), so back to back phases can share one clock read.
+     */
+    long add(int phase, long since) {
+        long now = System.nanoTime();
+        if (this != NONE) phases.addAndGet(phase, now - since);
+        return now;
+    }
+
+    /**
+     * Brings the deadline forward to a budget, unless it already ends sooner.
+     * @param since System.nanoTime() the budget started at.
+     * @param ms The budget in milliseconds.
+     */
+    void deadlineWithin(long since, long ms) {
+        if (this != NONE) deadline = Math.min(deadline, since + ms * 1_000_000L);
+    }
+
+    /**
+     * @return Nanoseconds until the deadline, negative once it has passed, or Long.MAX_VALUE if there is none.
+     */
+    long remainingNanos() {
+        long d = deadline;
+        return d == Long.MAX_VALUE ? Long.MAX_VALUE : d - System.nanoTime();
+    }
+
+    /**
+     * @return True if the deadline has passed.
+     */
+    boolean expired() {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * Called once the response is closed. Keeps the trace if the request was slow; it is not printed, since that
+     * would hold up the request path on stdout just when requests are already slow.
+     */
+    void finish(String route, String method, String command, int code, long total) {
+        if (total < slowNanos) return;
+        this.route = route;
+        this.method = method;
+        this.command = command;
+        this.code = code;
+        this.total = total;
+        this.finishedAt = System.currentTimeMillis();
+        slow.set((int) (slowCount.getAndIncrement() % SLOW_CAPACITY), this); // Volatile write publishes the fields
+    }
+
+    /**
+     * @return The kept slow requests as a JSON array, newest first.
+     */
+    static String slowJson() {
+        StringBuilder sb = new StringBuilder("[");
+        long n = slowCount.get();
+        for (long i = n - 1; i >= 0 && i >= n - SLOW_CAPACITY; i--) {
+            Trace t = slow.get((int) (i % SLOW_CAPACITY));
+            if (t == null) continue; // Claimed but not stored yet
+            if (sb.length() > 1) sb.append(',');
+            sb.append(t.toJson());
+        }
+        return sb.append(']').toString();
+    }
+
+    private String toJson() {
+        StringBuilder sb = new StringBuilder(256).append("{\"id\":\"").append(id)
+                .append("\",\"route\":\"").append(route)
+                .append("\",\"method\":\"").append(method)
+                .append("\",\"command\":\"").append(command)
+                .append("\",\"code\":").append(code)
+                .append(",\"at\":").append(finishedAt)
+                .append(",\"totalMs\":").append(millis(total));
+        for (int i = 0; i < PHASES.length; i++) {
+            sb.append(",\"").append(PHASES[i]).append("Ms\":").append(millis(phases.get(i)));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+}
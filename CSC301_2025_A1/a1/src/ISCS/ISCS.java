@@ -1,14 +1,413 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * ISCS (Inter-Service Communication Server) is a reverse proxy that sits between the OrderService and the User/Product
+ * services. It spreads /user and /product traffic over a list of backend instances read from config.json, so more
+ * instances can be added for more throughput, and caches GET responses by id in front of them. The instances do not
+ * share their data, so every id is owned by one of them (consistent hashing, as for product shards) and all reads
+ * and writes of that id go to it.
+ */
 public class ISCS {
+
+    /**
+     * Starts the ISCS.
+     * @param args Command line arguments, expects exactly one path to config.json.
+     * @throws Exception If server creation or configuration reading fails.
+     */
     public static void main(String[] args) throws Exception {
         System.out.println("ISCS starting...");
 
-        int port = 14000; // temporary
+        if (args.length != 1) {
+            System.err.println("Usage: java ISCS config.json");
+            return;
+        }
+
+        String config = Config.readFile(args[0]);
+        String iscsConfig = Config.section(config, "InterServiceCommunication");
+
+        int port = Config.getInt(iscsConfig, "port", -1);
+        if (port <= 0) {
+            System.err.println("Invalid port in config.json");
+            return;
+        }
+
+        String balancer = Config.getString(iscsConfig, "balancer", "round-robin");
+        int maxConnections = Config.getInt(iscsConfig, "maxConnectionsPerBackend", 32);
+        connectionWaitNanos = TimeUnit.MILLISECONDS.toNanos(Config.getInt(iscsConfig, "queueBudgetMs", 100));
+        ResponseCache cache = new ResponseCache(Config.getInt(iscsConfig, "cacheCapacity", 10000));
+
+        BackendPool users = new BackendPool("UserService",
+                backendAddresses(config, iscsConfig, "userBackends", "UserService"), balancer, maxConnections);
+        BackendPool products = new BackendPool("ProductService",
+                backendAddresses(config, iscsConfig, "productBackends", "ProductService"), balancer, maxConnections);
+        BackendPool productReplicas = new BackendPool("ProductService replicas",
+                Config.getList(iscsConfig, "productReplicas"), balancer, maxConnections);
+
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(ServerExecutors.create(iscsConfig));
+
+        Metrics.instrument(server.createContext("/user", new ProxyHandler(users, null, "/user", cache)));
+        Metrics.instrument(server.createContext("/product", new ProxyHandler(products, productReplicas, "/product", cache)));
+        server.createContext("/iscs/stats", new StatsHandler(cache));
+        Metrics.serve(server, iscsConfig);
+
         server.start();
+        System.out.println("ISCS listening on port " + port + " (" + balancer + ", "
+                + users.backends.length + " user / " + products.backends.length + " product backends, "
+                + productReplicas.backends.length + " product replicas)");
+    }
+
+    // How long a request waits for a free connection to its backend before it is answered 503, set once at start
+    private static long connectionWaitNanos;
+
+    /**
+     * Reads the backend list for a route, falling back to the single instance in the service's own section.
+     * @param config The raw config.json content.
+     * @param iscsConfig The InterServiceCommunication section.
+     * @param key The key holding the list of "host:port" entries.
+     * @param serviceName The service to fall back to when the list is missing.
+     * @return The list of backend addresses.
+     */
+    private static List<String> backendAddresses(String config, String iscsConfig, String key, String serviceName) {
+        List<String> addresses = Config.getList(iscsConfig, key);
+        if (addresses.isEmpty()) {
+            int port = Config.getInt(Config.section(config, serviceName), "port", -1);
+            if (port > 0) addresses.add("localhost:" + port);
+        }
+        return addresses;
+    }
+
+    /**
+     * One backend instance. Each backend has its own HttpClient, so it keeps its own pool of keep-alive connections,
+     * and a semaphore that caps how many of those connections can be in use at once.
+     */
+    static class Backend {
+        final String address;
+        final URI base;
+        final HttpClient client;
+        final Semaphore connections;
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        Backend(String address, int maxConnections) {
+            this.address = address;
+            this.base = URI.create("http://" + address);
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(2))
+                    .build();
+            this.connections = new Semaphore(maxConnections);
+        }
+    }
+
+    /**
+     * The set of backends for one route, plus the balancing strategy used to pick between them.
+     */
+    static class BackendPool {
+        final String name;
+        final Backend[] backends;
+        final String balancer;
+        private final ShardRing ring; // Null while there are no backends
+        private final AtomicInteger next = new AtomicInteger();
+
+        BackendPool(String name, List<String> addresses, String balancer, int maxConnections) {
+            this.name = name;
+            this.balancer = balancer;
+            this.backends = new Backend[addresses.size()];
+            for (int i = 0; i < backends.length; i++) {
+                backends[i] = new Backend(addresses.get(i), maxConnections);
+            }
+            this.ring = addresses.isEmpty() ? null : new ShardRing(addresses);
+        }
+
+        /**
+         * @param id A user or product id.
+         * @return The backend holding it, or null if the pool is empty.
+         */
+        Backend owner(int id) {
+            return ring == null ? null : backends[ring.ownerIndex(id)];
+        }
+
+        /**
+         * Picks the backend for the next request.
+         * round-robin: cycles through the backends in order.
+         * least-outstanding: the backend with the fewest requests in flight.
+         * power-of-two: the less busy of two randomly chosen backends.
+         * @return The chosen backend, or null if the pool is empty.
+         */
+        Backend pick() {
+            int n = backends.length;
+            if (n == 0) return null;
+            if (n == 1) return backends[0];
+
+            switch (balancer) {
+                case "least-outstanding": {
+                    Backend best = backends[0];
+                    for (int i = 1; i < n; i++) {
+                        if (backends[i].outstanding.get() < best.outstanding.get()) best = backends[i];
+                    }
+                    return best;
+                }
+                case "power-of-two": {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    int a = rnd.nextInt(n);
+                    int b = rnd.nextInt(n - 1);
+                    if (b >= a) b++; // Two distinct backends
+                    return backends[a].outstanding.get() <= backends[b].outstanding.get() ? backends[a] : backends[b];
+                }
+                default: // round-robin
+                    return backends[Math.floorMod(next.getAndIncrement(), n)];
+            }
+        }
+    }
+
+    /**
+     * Serves the response cache counters, e.g. {"capacity":10000,"size":42,"hits":900,"misses":100,...}.
+     */
+    static class StatsHandler implements HttpHandler {
+        private final ResponseCache cache;
+
+        StatsHandler(ResponseCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] bytes = cache.statsJson().getBytes(StandardCharsets.UTF_8);
+            send(exchange, 200, "application/json", bytes);
+        }
+    }
+
+    /**
+     * Forwards every request of a route to the backend owning its id, from the path of a GET or the "id" fields of
+     * a POST, and copies the response back. A request without an id goes to the backend picked by the balancer,
+     * which answers it with a 400 or 404. With more than one backend, a batch naming ids of several backends and a
+     * bulk import are refused with a 400, as one backend could not serve them.
+     * GETs by id are answered from the response cache when possible, and POSTs drop the cached entry for their id.
+     * A route with read replicas sends its GETs to them, and to the pool only when the replica is down, too far
+     * behind its primary (503) or does not have the record (404).
+     */
+    static class ProxyHandler implements HttpHandler {
+        private final BackendPool pool;
+        private final BackendPool replicas;
+        private final String route;
+        private final ResponseCache cache;
+
+        ProxyHandler(BackendPool pool, BackendPool replicas, String route, ResponseCache cache) {
+            this.pool = pool;
+            this.replicas = replicas;
+            this.route = route;
+            this.cache = cache;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String getKey = null;
+            long stamp = 0;
+            if (cache.enabled() && "GET".equals(method)) {
+                getKey = ResponseCache.keyForGet(exchange.getRequestURI().getPath());
+                if (getKey != null) {
+                    ResponseCache.Entry hit = cache.get(getKey);
+                    if (hit != null) {
+                        send(exchange, hit.status, hit.contentType, hit.body);
+                        return;
+                    }
+                    stamp = cache.stamp(getKey); // Before the forward, so a write that overtakes it is seen
+                }
+            }
+
+            byte[] body;
+            try (InputStream is = exchange.getRequestBody()) {
+                body = is.readAllBytes();
+            }
+
+            if (exchange.getRequestURI().getPath().startsWith("/product/export")) { // Only shards call it
+                send(exchange, 403, "application/json", FORBIDDEN);
+                return;
+            }
+            if (pool.backends.length == 0) { // Nothing configured for this route
+                send(exchange, 503, "application/json", SERVICE_UNAVAILABLE);
+                return;
+            }
+            Backend backend = owner(method, exchange.getRequestURI().getPath(), body);
+            if (backend == null) {
+                send(exchange, 400, "application/json", SEVERAL_OWNERS);
+                return;
+            }
+
+            HttpResponse<byte[]> response = null;
+            Backend replica = "GET".equals(method) && replicas != null ? replicas.pick() : null;
+            if (replica != null) {
+                try {
+                    response = forward(replica, exchange, method, body);
+                } catch (BackendBusy e) {
+                    // The primary may have a connection free
+                }
+            }
+            if (response == null || response.statusCode() == 503 || response.statusCode() == 404) {
+                try {
+                    response = forward(backend, exchange, method, body);
+                } catch (BackendBusy e) { // Not sent, so a POST changed nothing and the cache stays as it is
+                    send(exchange, 503, "application/json", SERVICE_UNAVAILABLE);
+                    return;
+                }
+            } else {
+                getKey = null; // A replica may not have seen the write that last invalidated the entry, so not cached
+            }
+
+            if (cache.enabled() && "POST".equals(method)) { // The write may have changed the cached record
+                for (String postKey : ResponseCache.keysForPost(route, new String(body, StandardCharsets.UTF_8))) {
+                    cache.invalidate(postKey);
+                }
+            }
+
+            if (response == null) {
+                send(exchange, 502, "application/json", BAD_GATEWAY);
+                return;
+            }
+
+            String contentType = response.headers().firstValue("Content-Type").orElse(null);
+            if (getKey != null && response.statusCode() == 200) {
+                cache.put(getKey, stamp, new ResponseCache.Entry(200, contentType, response.body()));
+            }
+            send(exchange, response.statusCode(), contentType, response.body());
+        }
+
+        /**
+         * @return The backend to send the request to, or null if its ids belong to several backends.
+         */
+        private Backend owner(String method, String path, byte[] body) {
+            if (pool.backends.length == 1) return pool.backends[0];
+            if (path.endsWith("/bulk")) return null;
+
+            List<Integer> ids = new ArrayList<>(1);
+            if ("GET".equals(method)) {
+                String key = ResponseCache.keyForGet(path);
+                if (key != null) ids.add(idOf(key));
+            } else {
+                String text = new String(body, StandardCharsets.UTF_8);
+                for (String key : ResponseCache.keysForPost(route, text)) ids.add(idOf(key));
+                listedIds(text, ids);
+            }
+            if (ids.isEmpty()) return pool.pick();
+
+            Backend owner = null;
+            for (int id : ids) {
+                Backend b = pool.owner(id);
+                if (owner != null && b != owner) return null;
+                owner = b;
+            }
+            return owner;
+        }
+
+        // Cache keys are route + "/" + id
+        private static int idOf(String key) {
+            return Integer.parseInt(key.substring(key.lastIndexOf('/') + 1));
+        }
+
+        // The numbers of an "ids" array, as a "lookup" sends
+        private static void listedIds(String body, List<Integer> ids) {
+            int i = body.indexOf("\"ids\"");
+            int open = i < 0 ? -1 : body.indexOf('[', i);
+            int close = open < 0 ? -1 : body.indexOf(']', open);
+            if (close < 0) return;
+            for (String item : body.substring(open + 1, close).split(",")) {
+                try {
+                    ids.add(Integer.parseInt(item.trim()));
+                } catch (NumberFormatException e) {
+                    // Not an id, the service answers the request with a 400
+                }
+            }
+        }
+
+        /**
+         * Sends the request to one backend, once one of its connections is free. The wait for a connection is bounded
+         * by "queueBudgetMs" and by the request's deadline, like the wait for a handler thread in Admission, so a
+         * backend that stopped answering does not hold every ISCS thread.
+         * @return Its response, or null if it is down or the connection failed.
+         * @throws BackendBusy If no connection came free in time; the request was not sent.
+         */
+        private static HttpResponse<byte[]> forward(Backend backend, HttpExchange exchange, String method, byte[] body)
+                throws BackendBusy {
+            HttpRequest.Builder request = HttpRequest.newBuilder(backend.base.resolve(exchange.getRequestURI().toString()))
+                    .method(method, body.length == 0
+                            ? HttpRequest.BodyPublishers.noBody()
+                            : HttpRequest.BodyPublishers.ofByteArray(body));
+            String requestType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (requestType != null) request.header("Content-Type", requestType);
+            Trace trace = Trace.of(exchange);
+            request.header(Trace.HEADER, trace.id); // Keeps the caller's id across the hop
+            long remaining = trace.remainingNanos();
+            if (remaining != Long.MAX_VALUE) { // And what is left of its deadline
+                request.header(Trace.DEADLINE_HEADER, Long.toString(Math.max(0, (remaining + 999_999) / 1_000_000)));
+                request.timeout(Duration.ofNanos(Math.max(1, remaining)));
+            }
+
+            HttpResponse<byte[]> response;
+            backend.outstanding.incrementAndGet();
+            try {
+                long wait = Math.min(connectionWaitNanos, Math.max(0, remaining));
+                if (!backend.connections.tryAcquire(wait, TimeUnit.NANOSECONDS)) throw new BackendBusy();
+                try {
+                    response = backend.client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+                } finally {
+                    backend.connections.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response = null;
+            } catch (IOException e) { // Backend down or connection refused
+                response = null;
+            } finally {
+                backend.outstanding.decrementAndGet();
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Every connection to a backend stayed in use while a request waited for one.
+     */
+    static class BackendBusy extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        BackendBusy() {
+            super("No free connection", null, false, false); // Expected under load, no stack trace needed
+        }
+    }
+
+    private static final byte[] SERVICE_UNAVAILABLE = "{\"status\":\"Service Unavailable\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FORBIDDEN = "{\"status\":\"Forbidden\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BAD_GATEWAY = "{\"status\":\"Bad Gateway\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEVERAL_OWNERS =
+            "{\"status\":\"Send batches and bulk imports to each instance directly\"}".getBytes(StandardCharsets.UTF_8);
 
-        System.out.println("ISCS listening on port " + port);
+    // An empty body is sent chunked (length 0), as -1 would make HttpServer close the keep-alive connection
+    private static void send(HttpExchange exchange, int code, String contentType, byte[] bytes) throws IOException {
+        if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+        exchange.close();
     }
 }
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of GET /user/{id} and GET /product/{id} responses kept by the ISCS. Entries are dropped when a
+ * POST for the same id passes through the proxy, and the hit/miss/eviction counters are served on /iscs/stats so the
+ * capacity can be sized.
+ */
+class ResponseCache {
+
+    /**
+     * A cached backend response.
+     */
+    static class Entry {
+        final int status;
+        final String contentType;
+        final byte[] body;
+
+        Entry(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+
+    // Bumped when a key is invalidated, so a GET that raced with a write to it does not put a stale response back.
+    // Keys share a slot by hash, so a write only holds back reads of the keys in its slot, not every read in flight.
+    private static final int VERSION_SLOTS = 4096;
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_SLOTS);
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+
+    ResponseCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) { // Access order gives LRU
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ResponseCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    boolean enabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Looks up a cached response and counts the hit or miss.
+     * @param path The request path, e.g. "/user/5".
+     * @return The cached response, or null.
+     */
+    Entry get(String path) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(path);
+        }
+        if (e == null) misses.increment();
+        else hits.increment();
+        return e;
+    }
+
+    /**
+     * @param path The request path the read is for.
+     * @return The stamp to pass to {@link #put} for a backend read that starts now.
+     */
+    long stamp(String path) {
+        return versions.get(slot(path));
+    }
+
+    /**
+     * Stores a response, unless the path was invalidated since the read started.
+     * @param path The request path.
+     * @param stamp The value of {@link #stamp} taken before the backend call.
+     * @param entry The response to store.
+     */
+    void put(String path, long stamp, Entry entry) {
+        synchronized (entries) {
+            if (versions.get(slot(path)) == stamp) entries.put(path, entry);
+        }
+    }
+
+    /**
+     * Drops the cached response for a path, called after a write for that id went through.
+     * @param path The path of the GET that the write affects, e.g. "/product/3".
+     */
+    void invalidate(String path) {
+        synchronized (entries) {
+            versions.incrementAndGet(slot(path));
+            entries.remove(path);
+        }
+        invalidations.increment();
+    }
+
+    /**
+     * @return The counters as a JSON object.
+     */
+    String statsJson() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return "{\"capacity\":" + capacity
+                + ",\"size\":" + size
+                + ",\"hits\":" + hits.sum()
+                + ",\"misses\":" + misses.sum()
+                + ",\"evictions\":" + evictions.sum()
+                + ",\"invalidations\":" + invalidations.sum()
+                + "}";
+    }
+
+    /**
+     * Cache key for a GET, e.g. "/user/007" becomes "/user/7" so it matches the key of a write to id 7.
+     * @param path The request path.
+     * @return The key, or null if the path is not a GET by id that may be cached.
+     */
+    static String keyForGet(String path) {
+        int slash = path.lastIndexOf('/');
+        if (slash <= 0 || path.indexOf('/', 1) != slash) return null;
+        String route = path.substring(0, slash);
+        if (!route.equals("/user") && !route.equals("/product")) return null;
+        return key(route, path.substring(slash + 1));
+    }
+
+    /**
+     * Cache keys affected by a POST, found from every "id" field of the body without fully parsing it, so a batch
+     * command such as "reserve batch" drops each product it names.
+     * @param route "/user" or "/product".
+     * @param body The raw JSON request body.
+     * @return The keys, empty if the body has no numeric id.
+     */
+    static List<String> keysForPost(String route, String body) {
+        List<String> keys = new ArrayList<>(1);
+        for (int i = body.indexOf("\"id\""); i >= 0; i = body.indexOf("\"id\"", i + 4)) {
+            int j = body.indexOf(':', i + 4);
+            if (j < 0) break;
+
+            j++;
+            while (j < body.length() && (Character.isWhitespace(body.charAt(j)) || body.charAt(j) == '"')) j++;
+            int start = j;
+            while (j < body.length() && Character.isDigit(body.charAt(j))) j++;
+            String key = key(route, body.substring(start, j));
+            if (key != null) keys.add(key);
+        }
+        return keys;
+    }
+
+    private static int slot(String path) {
+        return (path.hashCode() & 0x7fffffff) % VERSION_SLOTS;
+    }
+
+    private static String key(String route, String digits) {
+        if (digits.isEmpty() || digits.length() > 10) return null;
+        for (int i = 0; i < digits.length(); i++) {
+            if (!Character.isDigit(digits.charAt(i))) return null;
+        }
+        try {
+            return route + "/" + Integer.parseInt(digits);
+        } catch (NumberFormatException e) { // Above Integer.MAX_VALUE, the services reject it anyway
+            return null;
+        }
+    }
+}
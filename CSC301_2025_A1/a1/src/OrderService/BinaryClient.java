@@ -0,0 +1,204 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caller side of the binary transport (see BinaryServer). It keeps a few long-lived connections to each address and
+ * spreads calls over them in turn; every call is one frame written and flushed, and any number of calls can be in
+ * flight on a connection at once. One thread per connection reads the answers and completes the call with the same
+ * request id, so answers need not come back in order and nothing waits for a free connection.
+ *
+ * A connection is opened by the first call that needs it, on a connect thread, so no caller blocks on it: the calls
+ * for it meanwhile are sent once it is open, or fail with the connect's IOException. When a connection fails, every
+ * call in flight on it fails with the IOException and the next call opens a new one.
+ */
+class BinaryClient {
+
+    private final int connectTimeoutMs;
+    private final int connectionsPerHost;
+    private final Map<String, AtomicReferenceArray<CompletableFuture<Connection>>> hosts = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ExecutorService connector = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "binary-connect");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param connectTimeoutMs Time allowed to open a new connection.
+     * @param connectionsPerHost Connections kept to each address, calls go to them in turn.
+     */
+    BinaryClient(int connectTimeoutMs, int connectionsPerHost) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.connectionsPerHost = Math.max(1, connectionsPerHost);
+    }
+
+    /**
+     * Sends one request.
+     * @param host The host of the service.
+     * @param port The port of its binary transport.
+     * @param type BinaryServer.GET_USER, GET_PRODUCT or ADJUST_STOCK.
+     * @param id The user or product id.
+     * @param arg The stock change for ADJUST_STOCK, otherwise 0.
+     * @param timeoutNanos Time allowed until the answer arrives, including opening the connection. The service is
+     *                     sent what is left of it after connecting and does not start on the request after that.
+     * @return The status code and body, or a future failed with the IOException (HttpTimeoutException if no answer
+     *         came in time).
+     */
+    CompletableFuture<OrderService.HttpResult> call(String host, int port, byte type, int id, int arg, long timeoutNanos) {
+        long start = System.nanoTime();
+        CompletableFuture<OrderService.HttpResult> result = new CompletableFuture<>();
+        // A copy, so a call that gives up does not fail the connect for the others waiting on it
+        connection(host, port).copy().orTimeout(timeoutNanos, TimeUnit.NANOSECONDS).whenComplete((c, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                result.completeExceptionally(cause instanceof TimeoutException
+                        ? new HttpTimeoutException("connect timed out") : cause);
+                return;
+            }
+            long left = timeoutNanos - (System.nanoTime() - start);
+            if (left <= 0) {
+                result.completeExceptionally(new HttpTimeoutException("request timed out"));
+                return;
+            }
+            c.send(type, id, arg, left).whenComplete((res, error) -> {
+                if (error != null) result.completeExceptionally(error);
+                else result.complete(res);
+            });
+        });
+        return result;
+    }
+
+    private CompletableFuture<Connection> connection(String host, int port) {
+        AtomicReferenceArray<CompletableFuture<Connection>> slots = hosts.computeIfAbsent(host + ":" + port,
+                k -> new AtomicReferenceArray<>(connectionsPerHost));
+        int i = Math.floorMod(next.getAndIncrement(), connectionsPerHost);
+        while (true) {
+            CompletableFuture<Connection> c = slots.get(i);
+            if (c != null && !failed(c)) return c;
+            CompletableFuture<Connection> opening = new CompletableFuture<>();
+            if (!slots.compareAndSet(i, c, opening)) continue; // Another caller is opening it, use that one
+            connector.execute(() -> {
+                try {
+                    opening.complete(new Connection(host, port, connectTimeoutMs));
+                } catch (IOException e) {
+                    opening.completeExceptionally(e);
+                }
+            });
+            return opening;
+        }
+    }
+
+    // A connect that failed, or a connection closed since, is replaced by the next call
+    private static boolean failed(CompletableFuture<Connection> c) {
+        return c.isCompletedExceptionally() || (c.isDone() && c.join().closed);
+    }
+
+    /**
+     * One connection and the calls in flight on it.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final DataOutputStream out; // Guarded by itself
+        private final Map<Integer, CompletableFuture<OrderService.HttpResult>> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger ids = new AtomicInteger();
+        private volatile boolean closed;
+
+        Connection(String host, int port, int connectTimeoutMs) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true); // Every frame is flushed on its own, Nagle would hold the next one back
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                Thread reader = new Thread(() -> read(in), "binary-client-" + host + ":" + port);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        CompletableFuture<OrderService.HttpResult> send(byte type, int id, int arg, long timeoutNanos) {
+            int requestId = ids.incrementAndGet();
+            CompletableFuture<OrderService.HttpResult> result = new CompletableFuture<>();
+            pending.put(requestId, result);
+            try {
+                synchronized (out) {
+                    out.writeInt(BinaryServer.REQUEST_LENGTH);
+                    out.writeInt(requestId);
+                    out.writeByte(type);
+                    out.writeInt(id);
+                    out.writeInt(arg);
+                    out.writeInt((int) Math.min(Integer.MAX_VALUE, (timeoutNanos + 999_999) / 1_000_000));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+            if (closed && pending.remove(requestId) != null) { // Closed before this call was added, close missed it
+                result.completeExceptionally(new IOException("Binary connection closed"));
+                return result;
+            }
+            CompletableFuture<OrderService.HttpResult> timed = new CompletableFuture<>();
+            result.orTimeout(timeoutNanos, TimeUnit.NANOSECONDS).whenComplete((res, e) -> {
+                if (e == null) {
+                    timed.complete(res);
+                    return;
+                }
+                pending.remove(requestId); // A late answer is dropped
+                timed.completeExceptionally(e instanceof TimeoutException ? new HttpTimeoutException("request timed out") : e);
+            });
+            return timed;
+        }
+
+        // Answers are completed on this thread, so what the caller chains on them must not block
+        private void read(DataInputStream in) {
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length < 6) throw new IOException("Bad frame length " + length);
+                    int requestId = in.readInt();
+                    int status = in.readUnsignedShort();
+                    byte[] body = new byte[length - 6];
+                    in.readFully(body);
+                    CompletableFuture<OrderService.HttpResult> call = pending.remove(requestId);
+                    if (call != null) call.complete(new OrderService.HttpResult(status, new String(body, StandardCharsets.UTF_8)));
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void close(IOException cause) {
+            if (closed) return;
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+            for (Integer requestId : pending.keySet()) {
+                CompletableFuture<OrderService.HttpResult> call = pending.remove(requestId);
+                if (call != null) call.completeExceptionally(cause);
+            }
+        }
+    }
+}
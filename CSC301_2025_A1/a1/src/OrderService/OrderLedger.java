@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only record of placed orders, kept in memory-mapped segment files (orders-N.seg) under one directory.
+ *
+ * Every order is a fixed 32 byte record: [long id][int userId][int productId][int quantity][int status][long time].
+ * Ids come from an AtomicLong and are handed out only for orders that were placed, so they are dense and the
+ * record of id n lives at index n - 1. Finding an order is therefore just arithmetic, with no index to keep in
+ * memory or rebuild, and appending takes no lock: a writer claims an id, fills its slot, and publishes it by writing
+ * the id last with release semantics. A slot whose id is still 0 is treated as missing. A record is never written
+ * again, its status is always PLACED.
+ *
+ * Status changes (a cancel, or undoing one whose release failed) are appended to a second file, status.log, as
+ * 20 byte records: [long id][int status][long time]. The current status of every order that is not PLACED is kept
+ * in memory, so reading an order stays O(1), and is rebuilt from status.log on startup.
+ *
+ * On startup the segments are scanned backwards for the highest written id and numbering continues after it.
+ * Records reach the disk when the OS flushes the mapped pages or the file, or on shutdown.
+ */
+class OrderLedger {
+
+    static final int PLACED = 1;
+    static final int CANCELLED = 2;
+
+    private static final int RECORD = 32;
+    private static final int STATUS_RECORD = 20;
+    private static final int SEGMENT_BITS = 20; // Records per segment, 32MB files
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_BITS;
+    private static final int MAX_SEGMENTS = 4096;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * A copy of one record.
+     */
+    static final class Order {
+        final long id;
+        final int userId;
+        final int productId;
+        final int quantity;
+        final int status;
+
+        Order(long id, int userId, int productId, int quantity, int status) {
+            this.id = id;
+            this.userId = userId;
+            this.productId = productId;
+            this.quantity = quantity;
+            this.status = status;
+        }
+
+        String toJson() {
+            return "{\"id\":" + id + ",\"user_id\":" + userId + ",\"product_id\":" + productId
+                    + ",\"quantity\":" + quantity + ",\"status\":\"" + (status == CANCELLED ? "Cancelled" : "Placed") + "\"}";
+        }
+    }
+
+    private final Path dir;
+    private final AtomicLong nextId;
+    private final AtomicReferenceArray<MappedByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    private final Map<Long, Integer> statuses = new ConcurrentHashMap<>(); // Orders no longer PLACED
+    private final FileChannel statusLog;  // Guarded by this
+    private long statusLogEnd;            // Guarded by this
+    private final ByteBuffer statusRecord = ByteBuffer.allocate(STATUS_RECORD); // Guarded by this
+
+    /**
+     * Opens the ledger, creating the directory on first use.
+     * @param dir Directory for the segment files.
+     * @throws IOException If the segments cannot be mapped.
+     */
+    OrderLedger(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+
+        int last = -1;
+        while (last + 1 < MAX_SEGMENTS && Files.exists(segmentPath(last + 1))) last++;
+        long highest = 0;
+        for (int seg = last; seg >= 0 && highest == 0; seg--) {
+            MappedByteBuffer buf = segment(seg);
+            for (int i = SEGMENT_RECORDS - 1; i >= 0; i--) {
+                long id = buf.getLong(i * RECORD);
+                if (id != 0) {
+                    highest = id;
+                    break;
+                }
+            }
+        }
+        nextId = new AtomicLong(highest + 1);
+
+        statusLog = FileChannel.open(dir.resolve("status.log"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        statusLogEnd = statusLog.size() / STATUS_RECORD * STATUS_RECORD; // A record cut short by a crash is dropped
+        ByteBuffer changes = ByteBuffer.allocate(STATUS_RECORD * 4096);
+        for (long pos = 0; pos < statusLogEnd; ) {
+            changes.clear().limit((int) Math.min(changes.capacity(), statusLogEnd - pos));
+            while (changes.hasRemaining()) pos += statusLog.read(changes, pos);
+            changes.flip();
+            while (changes.remaining() >= STATUS_RECORD) {
+                long id = changes.getLong();
+                int status = changes.getInt();
+                changes.getLong(); // Time
+                if (status == PLACED) statuses.remove(id);
+                else statuses.put(id, status);
+            }
+        }
+        System.out.println("Order ledger has " + highest + " orders, " + statuses.size() + " cancelled");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (int i = 0; i < MAX_SEGMENTS; i++) {
+                MappedByteBuffer buf = segments.get(i);
+                if (buf != null) buf.force();
+            }
+            try {
+                statusLog.force(false);
+            } catch (IOException e) {
+                System.out.println("Could not flush order status log: " + e.getMessage());
+            }
+        }));
+    }
+
+    /**
+     * Records a placed order.
+     * @return The new order's id.
+     * @throws IllegalStateException If the ledger is full or a segment cannot be mapped.
+     */
+    long append(int userId, int productId, int quantity) {
+        long id = nextId.getAndIncrement();
+        MappedByteBuffer buf = segmentFor(id);
+        int off = offset(id);
+        buf.putInt(off + 8, userId);
+        buf.putInt(off + 12, productId);
+        buf.putInt(off + 16, quantity);
+        buf.putInt(off + 20, PLACED);
+        buf.putLong(off + 24, System.currentTimeMillis());
+        LONGS.setRelease(buf, off, id); // Publishes the fields above
+        return id;
+    }
+
+    /**
+     * @param id The order id.
+     * @return The order, or null if there is no such order.
+     */
+    Order get(long id) {
+        if (id <= 0 || id >= nextId.get()) return null;
+        MappedByteBuffer buf = segmentFor(id);
+        int off = offset(id);
+        if ((long) LONGS.getAcquire(buf, off) != id) return null; // Claimed but not written yet
+        return new Order(id, buf.getInt(off + 8), buf.getInt(off + 12), buf.getInt(off + 16),
+                statuses.getOrDefault(id, PLACED));
+    }
+
+    /**
+     * Atomically changes an order's status, so only one of several concurrent cancels wins, and appends the change
+     * to status.log. Changes are rare, so they take a lock, which keeps the log in the order they happened.
+     * @return True if the status was expected and is now update.
+     * @throws IllegalStateException If the change cannot be written, the status is then left as it was.
+     */
+    synchronized boolean changeStatus(long id, int expected, int update) {
+        if (get(id) == null || statuses.getOrDefault(id, PLACED) != expected) return false;
+        statusRecord.clear();
+        statusRecord.putLong(id).putInt(update).putLong(System.currentTimeMillis()).flip();
+        long end = statusLogEnd;
+        try {
+            while (statusRecord.hasRemaining()) end += statusLog.write(statusRecord, end);
+        } catch (IOException e) { // The next change overwrites what part of the record got written
+            throw new IllegalStateException("Cannot write order status log", e);
+        }
+        statusLogEnd = end;
+        if (update == PLACED) statuses.remove(id);
+        else statuses.put(id, update);
+        return true;
+    }
+
+    private MappedByteBuffer segmentFor(long id) {
+        long seg = (id - 1) >>> SEGMENT_BITS;
+        if (seg >= MAX_SEGMENTS) throw new IllegalStateException("Order ledger is full");
+        MappedByteBuffer buf = segments.get((int) seg);
+        if (buf != null) return buf;
+        try {
+            return segment((int) seg);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map order ledger segment " + seg, e);
+        }
+    }
+
+    // Maps a segment once; threads that race here all end up with the first mapping
+    private MappedByteBuffer segment(int seg) throws IOException {
+        MappedByteBuffer buf = segments.get(seg);
+        if (buf != null) return buf;
+        synchronized (segments) {
+            buf = segments.get(seg);
+            if (buf != null) return buf;
+            try (FileChannel ch = FileChannel.open(segmentPath(seg), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, (long) SEGMENT_RECORDS * RECORD);
+            }
+            segments.set(seg, buf);
+            return buf;
+        }
+    }
+
+    private static int offset(long id) {
+        return (int) ((id - 1) & (SEGMENT_RECORDS - 1)) * RECORD;
+    }
+
+    private Path segmentPath(int seg) {
+        return dir.resolve("orders-" + seg + ".seg");
+    }
+}
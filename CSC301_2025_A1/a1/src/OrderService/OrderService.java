@@ -3,13 +3,18 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
-import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * OrderService is a microservice responsible for order management and request routing. It handles order placement and
@@ -37,69 +42,239 @@ public class OrderService {
         }
 
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.setExecutor(Executors.newFixedThreadPool(20));
+        server.setExecutor(ServerExecutors.create(Config.section(config, "OrderService")));
+
+        String userBase = downstreamBase(config, "UserService");
+        ProductShards shards = productShards(config);
+
+        // One pooled client shared by every handler, so connections to the services are reused
+        String orderConfig = Config.section(config, "OrderService");
+        ServiceClient client = new ServiceClient(
+                Config.getInt(orderConfig, "connectTimeoutMs", 2000),
+                Config.getInt(orderConfig, "readTimeoutMs", 5000),
+                Config.getInt(orderConfig, "maxConnectionsPerHost", 64),
+                Config.getInt(orderConfig, "downstreamQueueLimit", 1024),
+                Config.getInt(orderConfig, "downstreamQueueBudgetMs", 100),
+                Config.getBoolean(orderConfig, "hedgeGets", true),
+                Config.getInt(orderConfig, "breakerFailures", 5),
+                Config.getInt(orderConfig, "breakerOpenMs", 1000));
+        // Straight to the services only, the ISCS speaks HTTP alone
+        if (Config.getBoolean(orderConfig, "binaryTransport", false) && !Config.getBoolean(orderConfig, "useISCS", false)) {
+            int userOffset = Config.getInt(Config.section(config, "UserService"), "binaryPortOffset", 0);
+            int productOffset = Config.getInt(Config.section(config, "ProductService"), "binaryPortOffset", 0);
+            client.useBinary(new BinaryClient(Config.getInt(orderConfig, "connectTimeoutMs", 2000),
+                    Config.getInt(orderConfig, "binaryConnections", 2)), userOffset, productOffset);
+            System.out.println("Using the binary transport (port offsets " + userOffset + ", " + productOffset + ")");
+        }
+        Metrics.gauge("downstream_coalesced", "Downstream reads saved by joining an identical one in flight.",
+                client::coalesced);
+        Metrics.gauge("downstream_hedges", "Second copies sent of GETs slower than their host's p95.", client::hedges);
+        Metrics.gauge("downstream_hedge_wins", "Second copies that answered first.", client::hedgeWins);
+        Metrics.gauge("downstream_circuit_rejected", "Calls refused by an open circuit breaker.",
+                client::circuitRejected);
 
-        server.createContext("/order", new OrderHandler(config));
+        OrderLedger ledger = new OrderLedger(Paths.get(Config.getString(orderConfig, "ledgerDir", "order-ledger")));
+        Metrics.instrument(server.createContext("/order", new OrderHandler(userBase, shards, client, ledger)));
 
-        server.createContext("/user", new UserProxyHandler(config));
-        server.createContext("/product", new ProductProxyHandler(config));
+        Metrics.instrument(server.createContext("/user", new UserProxyHandler(userBase, client)));
+        Metrics.instrument(server.createContext("/product", new ProductProxyHandler(shards, client)));
+        Metrics.instrument(server.createContext("/admin/shards", new ShardAdminHandler(shards)));
+        Metrics.serve(server, orderConfig);
 
         server.start();
         System.out.println("OrderService listening on port " + port);
     }
 
+    /**
+     * Base URL for calls to a downstream service. When "useISCS" is set in the OrderService section, every call goes
+     * through the ISCS, which balances it over the service's instances; otherwise it goes straight to the service.
+     * @param config The raw config.json content.
+     * @param serviceName "UserService" or "ProductService".
+     * @return The base URL, without a trailing slash.
+     */
+    static String downstreamBase(String config, String serviceName) {
+        if (Config.getBoolean(Config.section(config, "OrderService"), "useISCS", false)) {
+            String iscs = Config.section(config, "InterServiceCommunication");
+            return "http://" + Config.getString(iscs, "ip", "localhost") + ":" + Config.getInt(iscs, "port", -1);
+        }
+        return "http://localhost:" + extractPort(config, serviceName);
+    }
+
+    /**
+     * The ProductService shards from the "shards" list of its config section, and their read replicas from the
+     * "replicas" list. Without shards the one ProductService reached through downstreamBase is the only shard.
+     * @param config The raw config.json content.
+     * @return The product router.
+     */
+    static ProductShards productShards(String config) {
+        String productConfig = Config.section(config, "ProductService");
+        List<String> shards = Config.getList(productConfig, "shards");
+        List<String> replicas = Config.getList(productConfig, "replicas");
+        if (!replicas.isEmpty()) System.out.println("Reading products from replicas " + replicas);
+        if (shards.isEmpty()) {
+            return new ProductShards(List.of(downstreamBase(config, "ProductService").substring("http://".length())), replicas);
+        }
+        System.out.println("Routing products over " + shards.size() + " shards " + shards);
+        return new ProductShards(shards, replicas);
+    }
+
     static class UserProxyHandler implements HttpHandler {
-        private final int userPort;
+        private final String userBase;
+        private final ServiceClient client;
 
-        UserProxyHandler(String config) {
-            this.userPort = extractPort(config, "UserService");
+        UserProxyHandler(String userBase, ServiceClient client) {
+            this.userBase = userBase;
+            this.client = client;
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            proxyRequest(exchange, userPort);
+            proxyRequest(exchange, userBase, client);
         }
     }
 
+    /**
+     * Forwards product requests to the shard owning the product: the id comes from the path of a GET and from the
+     * body of a POST. GETs are read from the shard's replicas when it has any, and concurrent GETs of one product share
+     * one call. A request without a usable id goes to any shard, which answers it with a 400 or 404. Bulk imports
+     * (400, they go to each shard directly) and /product/export (403, only shards call it) are refused.
+     */
     static class ProductProxyHandler implements HttpHandler {
-        private final int productPort;
+        private final ProductShards shards;
+        private final ServiceClient client;
 
-        ProductProxyHandler(String config) {
-            this.productPort = extractPort(config, "ProductService");
+        ProductProxyHandler(ProductShards shards, ServiceClient client) {
+            this.shards = shards;
+            this.client = client;
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            proxyRequest(exchange, productPort);
+            Trace trace = Trace.of(exchange);
+            String path = exchange.getRequestURI().toString();
+
+            CompletableFuture<HttpResult> call;
+            if ("GET".equals(exchange.getRequestMethod())) {
+                int id = parseId(exchange.getRequestURI().getPath().substring("/product".length()).replace("/", ""));
+                boolean plain = path.equals("/product/" + id); // Anything else is left for the ProductService to answer
+                call = client.shared(path, () -> shards.read(id, base -> plain
+                        ? client.getProduct(base, id, trace) : client.get(base + path, trace)), trace);
+            } else {
+                long t = System.nanoTime();
+                String body = readRequestBody(exchange);
+                JsonFields data = new JsonFields();
+                JsonReader.parse(body, data);
+                trace.add(Trace.PARSE, t);
+                Metrics.tagCommand(exchange, data.get("command"));
+
+                String route = exchange.getRequestURI().getPath();
+                if (route.startsWith("/product/bulk")) {
+                    sendJson(exchange, 400, "{\"status\":\"Send bulk imports to each shard directly\"}");
+                    return;
+                }
+                if (route.startsWith("/product/export")) { // Only for shards, see /admin/shards
+                    sendJson(exchange, 403, "{\"status\":\"Forbidden\"}");
+                    return;
+                }
+                int id = parseId(data.get("id"));
+                if ("create".equals(data.get("command"))) {
+                    call = client.postJson(shards.baseForCreate(id) + path, body, trace);
+                } else {
+                    call = shards.call(id, base -> client.postJson(base + path, body, trace));
+                }
+                call = call.whenComplete((result, error) -> client.forget("/product/" + id));
+            }
+
+            call.exceptionally(e -> failure(e, new HttpResult(502, "{\"status\":\"Bad Gateway\"}"))) // Down or timed out
+                    .thenAccept(result -> reply(exchange, result));
+        }
+
+        // Any int will do for a missing or malformed id, the shard it lands on rejects the request
+        private static int parseId(String s) {
+            try {
+                return Integer.parseInt(s.trim());
+            } catch (Exception e) {
+                return 0;
+            }
         }
     }
 
     /**
-     * Shared logic to forward requests from OrderService to User/Product services
+     * GET /admin/shards lists the product shards. POST /admin/shards with {"command":"add shard","address":"host:port"}
+     * adds a running ProductService as a shard and moves its products to it, answering 200 with
+     * {"shards":[...],"moved":N} when done, 409 if another shard is being added or the address is already a shard,
+     * or 502 if a shard could not move its products (repeat the request to finish the move).
      */
-    private static void proxyRequest(HttpExchange exchange, int targetPort) throws IOException {
+    static class ShardAdminHandler implements HttpHandler {
+        private final ProductShards shards;
+
+        ShardAdminHandler(ProductShards shards) {
+            this.shards = shards;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                sendJson(exchange, 200, "{\"shards\":" + ProductShards.jsonList(shards.shards()) + "}");
+                return;
+            }
+            JsonFields data = getRequestData(exchange);
+            Metrics.tagCommand(exchange, data.get("command"));
+            String address = data.get("address");
+            if (!"POST".equals(exchange.getRequestMethod()) || !"add shard".equals(data.get("command"))
+                    || address == null || !address.matches("[A-Za-z0-9.\\-]+:\\d+")) {
+                sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
+                return;
+            }
+            shards.addShard(address).handle((json, e) -> {
+                if (e == null) return new HttpResult(200, json);
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                return cause instanceof IllegalStateException && cause.getCause() != null
+                        ? new HttpResult(502, "{\"status\":\"Moving products failed\"}")
+                        : new HttpResult(409, "{\"status\":\"" + cause.getMessage() + "\"}");
+            }).thenAccept(result -> reply(exchange, result));
+        }
+    }
+
+    /**
+     * Shared logic to forward requests from OrderService to User/Product services. The handler thread returns as soon
+     * as the call is sent, and the response is written back when the downstream service answers. Concurrent GETs of
+     * one path share a call, and a POST ends the shared call of the id in its body.
+     */
+    private static void proxyRequest(HttpExchange exchange, String targetBase, ServiceClient client) throws IOException {
         String method = exchange.getRequestMethod();
         String path = exchange.getRequestURI().toString();
-        String targetUrl = "http://localhost:" + targetPort + path;
+        String targetUrl = targetBase + path;
 
-        HttpResult result;
+        Trace trace = Trace.of(exchange);
+        CompletableFuture<HttpResult> call;
         if ("GET".equals(method)) {
-            result = httpGet(targetUrl);
+            call = client.shared(path, () -> client.get(targetUrl, trace), trace);
         } else {
+            long t = System.nanoTime();
             String body = readRequestBody(exchange);
-            result = httpPostJson(targetUrl, body);
+            JsonFields data = new JsonFields();
+            JsonReader.parse(body, data);
+            trace.add(Trace.PARSE, t);
+            String changed = exchange.getHttpContext().getPath() + "/" + data.get("id");
+            call = client.postJson(targetUrl, body, trace).whenComplete((result, error) -> client.forget(changed));
         }
 
-        sendJson(exchange, result.code, result.body);
+        call.exceptionally(e -> failure(e, new HttpResult(502, "{\"status\":\"Bad Gateway\"}"))) // Down or timed out
+                .thenAccept(result -> reply(exchange, result));
     }
 
     static class OrderHandler implements HttpHandler {
-        private final int userPort;
-        private final int productPort;
-
-        OrderHandler(String config) {
-            this.userPort = extractPort(config, "UserService");
-            this.productPort = extractPort(config, "ProductService");
+        private final String userBase;
+        private final ProductShards shards;
+        private final ServiceClient client;
+        private final OrderLedger ledger;
+
+        OrderHandler(String userBase, ProductShards shards, ServiceClient client, OrderLedger ledger) {
+            this.userBase = userBase;
+            this.shards = shards;
+            this.client = client;
+            this.ledger = ledger;
         }
 
         @Override
@@ -112,17 +287,38 @@ public class OrderService {
                 return;
             }
 
+            if ("GET".equals(method) && path.startsWith("/order/")) {
+                handleGetOrder(exchange, path.substring("/order/".length()));
+                return;
+            }
+
             exchange.sendResponseHeaders(404, -1);
             exchange.close();
         }
 
         /**
-         * Manages order placement logic. Verifies user existence and product stock before updating.
-         * Returns 409 if requested quantity exceeds available stock.
+         * Manages order placement logic. Checks the user, and only once it exists takes the stock with a single
+         * atomic reserve call to the ProductService (which also answers 404 for an unknown product), so an order of
+         * an unknown user never touches the stock. That is two calls one after the other. Returns 404 if either does
+         * not exist, 409 if requested quantity exceeds available stock, or 504 if the order's deadline ("deadlineMs"
+         * or the caller's X-Deadline-Ms) passes first. Both calls are made on the pooled client, so no handler thread
+         * waits on them. Concurrent orders of one user share the user check, and the reserve ends any shared read of
+         * the product.
          */
         private void handlePlaceOrder(HttpExchange exchange) throws IOException {
-            Map<String, String> data = getRequestData(exchange);
+            JsonFields data = getRequestData(exchange);
             String command = data.get("command");
+            Metrics.tagCommand(exchange, command);
+
+            if ("place orders".equals(command)) {
+                handlePlaceOrders(exchange, data);
+                return;
+            }
+
+            if ("cancel".equals(command)) {
+                handleCancel(exchange, data.get("id"));
+                return;
+            }
 
             if (command == null || !command.equals("place order")) {
                 sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
@@ -148,38 +344,269 @@ public class OrderService {
                     return;
                 }
 
-                HttpResult userRes = httpGet("http://localhost:" + userPort + "/user/" + userId);
-                if (userRes.code != 200) {
-                    sendJson(exchange, userRes.code == 404 ? 404 : 400, "{\"status\":\"Invalid Request\"}");
-                    return;
+                Trace trace = Trace.of(exchange);
+                HttpResult invalid = new HttpResult(400, "{\"status\":\"Invalid Request\"}");
+                client.shared("/user/" + userId, () -> client.getUser(userBase, userId, trace), trace).thenCompose(userRes -> {
+                    if (userRes.code == 200) return placeOrder(userId, productId, qty, trace);
+                    if (userRes.code == 503) return CompletableFuture.completedFuture(UNAVAILABLE);
+                    if (userRes.code == 504) return CompletableFuture.completedFuture(TIMED_OUT);
+                    return CompletableFuture.completedFuture(
+                            new HttpResult(userRes.code == 404 ? 404 : 400, "{\"status\":\"Invalid Request\"}"));
+                }).exceptionally(e -> failure(e, invalid)).thenAccept(result -> reply(exchange, result));
+
+            } catch (Exception e) {
+                sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
+            }
+        }
+
+        /**
+         * Reserves the stock of an order whose user exists and records it in the ledger if the reserve succeeds.
+         */
+        private CompletableFuture<HttpResult> placeOrder(int userId, int productId, int qty, Trace trace) {
+            // ProductService checks and decrements the stock in one atomic step
+            return shards.call(productId, base -> client.adjustStock(base, productId, -qty, trace))
+                    .whenComplete((res, error) -> client.forget("/product/" + productId)).thenCompose(reserveRes -> {
+                if (reserveRes.code == 200) {
+                    long t = System.nanoTime();
+                    long orderId;
+                    try {
+                        orderId = ledger.append(userId, productId, qty);
+                    } catch (RuntimeException e) { // Ledger full or unmappable, the reserved stock goes back
+                        return unreserve(productId, qty, trace, e);
+                    }
+                    trace.add(Trace.STORAGE, t);
+                    return CompletableFuture.completedFuture(new HttpResult(200, String.format("{\"id\":%d,\"product_id\":%d,\"user_id\":%d,\"quantity\":%d,\"status\":\"Success\"}", orderId, productId, userId, qty)));
+                } else if (reserveRes.code == 409) {
+                    return CompletableFuture.completedFuture(new HttpResult(409, "{\"status\":\"Exceeded quantity limit\"}"));
+                } else if (reserveRes.code == 503) {
+                    return CompletableFuture.completedFuture(UNAVAILABLE);
+                } else if (reserveRes.code == 504) {
+                    return CompletableFuture.completedFuture(TIMED_OUT);
                 }
+                return CompletableFuture.completedFuture(
+                        new HttpResult(reserveRes.code == 404 ? 404 : 400, "{\"status\":\"Invalid Request\"}"));
+            });
+        }
 
-                HttpResult prodRes = httpGet("http://localhost:" + productPort + "/product/" + productId);
-                if (prodRes.code != 200) {
-                    sendJson(exchange, prodRes.code == 404 ? 404 : 400, "{\"status\":\"Invalid Request\"}");
-                    return;
+        /**
+         * Gives back the stock of an order that was reserved but could not be recorded, and answers 500. The release
+         * is not bound by the order's deadline, which may be about to pass, so the stock is not lost for a late reply.
+         * @param productId The product reserved.
+         * @param qty The quantity reserved.
+         * @param trace The trace of the order.
+         * @param cause Why the order could not be recorded.
+         * @return A future 500 result, completed once the release has an answer.
+         */
+        private CompletableFuture<HttpResult> unreserve(int productId, int qty, Trace trace, RuntimeException cause) {
+            System.out.println("Order for product " + productId + " not recorded, releasing its stock: " + cause.getMessage());
+            Trace release = new Trace(trace.id);
+            return shards.call(productId, base -> client.adjustStock(base, productId, qty, release))
+                    .handle((res, error) -> {
+                        client.forget("/product/" + productId);
+                        if (error != null || res.code != 200) {
+                            System.out.println("Release of " + qty + " of product " + productId + " not confirmed: "
+                                    + (error != null ? error : "status " + res.code));
+                        }
+                        return new HttpResult(500, "{\"status\":\"Internal Server Error\"}");
+                    });
+        }
+
+        /**
+         * Returns a recorded order: 200 with {"id","user_id","product_id","quantity","status"}, where status is
+         * "Placed" or "Cancelled", 400 for a non-numeric id, or 404 if there is no such order.
+         */
+        private void handleGetOrder(HttpExchange exchange, String sId) throws IOException {
+            long id;
+            try {
+                id = Long.parseLong(sId);
+            } catch (NumberFormatException e) {
+                sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
+                return;
+            }
+            long t = System.nanoTime();
+            OrderLedger.Order order = ledger.get(id);
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (order == null) {
+                sendJson(exchange, 404, "{\"status\":\"Invalid Request\"}");
+                return;
+            }
+            sendJson(exchange, 200, order.toJson());
+        }
+
+        /**
+         * Cancels a placed order and gives its stock back with a "release" call to the ProductService. The status is
+         * switched first with a compare-and-set, so only one of several concurrent cancels releases the stock; if the
+         * release surely did not happen (refused with a 4xx or a 503, or never sent) the order is switched back to
+         * placed. Returns 200 with the cancelled order, 404 if there is no such order, 409 if it is already cancelled,
+         * 400 or 503 if the stock was not released. If the release may have happened (a timeout, a lost connection,
+         * a 5xx) the order stays cancelled, so a second cancel cannot give the stock back again, and the answer is a
+         * 502, or 504 once the deadline passed, saying the release is not confirmed.
+         */
+        private void handleCancel(HttpExchange exchange, String sId) throws IOException {
+            long id;
+            try {
+                id = Long.parseLong(sId);
+            } catch (NumberFormatException e) { // Also covers a missing id
+                sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
+                return;
+            }
+            Trace trace = Trace.of(exchange);
+            long t = System.nanoTime();
+            OrderLedger.Order order = ledger.get(id);
+            boolean cancelled = order != null && ledger.changeStatus(id, OrderLedger.PLACED, OrderLedger.CANCELLED);
+            trace.add(Trace.STORAGE, t);
+            if (order == null) {
+                sendJson(exchange, 404, "{\"status\":\"Invalid Request\"}");
+                return;
+            }
+            if (!cancelled) {
+                sendJson(exchange, 409, "{\"status\":\"Already cancelled\"}");
+                return;
+            }
+
+            shards.call(order.productId, base -> client.adjustStock(base, order.productId, order.quantity, trace))
+                    .whenComplete((res, error) -> client.forget("/product/" + order.productId)).thenApply(res -> {
+                if (res.code == 200) return new HttpResult(200, ledger.get(id).toJson());
+                // A 4xx or a 503 (shed unhandled) means the stock was not given back, anything else may have
+                if (res.code == 503) return uncancel(id, UNAVAILABLE);
+                if (res.code < 500) return uncancel(id, new HttpResult(400, "{\"status\":\"Invalid Request\"}"));
+                return unconfirmed(id, 502);
+            }).exceptionally(e -> {
+                while (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+                if (e instanceof ServiceClient.Overloaded || e instanceof ConnectException) { // Never sent
+                    return uncancel(id, failure(e, new HttpResult(400, "{\"status\":\"Invalid Request\"}")));
                 }
+                return unconfirmed(id, e instanceof ServiceClient.DeadlineExceeded ? 504 : 502);
+            }).thenAccept(result -> reply(exchange, result));
+        }
 
-                Map<String, String> prodJson = parseFlatJsonObject(prodRes.body);
-                int stock = Integer.parseInt(prodJson.getOrDefault("quantity", "0"));
+        // The release did not happen, so the order is placed again and can be cancelled once more
+        private HttpResult uncancel(long id, HttpResult result) {
+            try {
+                ledger.changeStatus(id, OrderLedger.CANCELLED, OrderLedger.PLACED);
+            } catch (RuntimeException e) {
+                System.out.println("Order " + id + " stays cancelled, its stock was not given back: " + e.getMessage());
+                return new HttpResult(500, "{\"status\":\"Internal Server Error\"}");
+            }
+            return result;
+        }
 
-                if (qty > stock) {
-                    sendJson(exchange, 409, "{\"status\":\"Exceeded quantity limit\"}");
-                    return;
+        // The release may have happened, so the order stays cancelled; putting it back would let a second cancel
+        // give the stock back twice
+        private HttpResult unconfirmed(long id, int code) {
+            System.out.println("Order " + id + " cancelled, but the release of its stock was not confirmed");
+            return new HttpResult(code, "{\"status\":\"Cancelled, stock release not confirmed\"}");
+        }
+
+        /**
+         * Places a batch of orders given as "orders": [{"user_id", "product_id", "quantity"}, ...] and answers 200 with
+         * {"results":[...]}, one entry per order in the same order. Each entry has the body a single "place order"
+         * would return plus its status in "code". All users are checked with one deduplicated "lookup" call and all
+         * stock is reserved with one "reserve batch" call per product shard, made in parallel, so a batch costs a few
+         * downstream calls instead of two per order. A malformed batch, or a downstream failure, answers 400 for the
+         * whole request, or 503 if a service is overloaded.
+         */
+        private void handlePlaceOrders(HttpExchange exchange, JsonFields data) throws IOException {
+            String sOrders = data.get("orders");
+            List<int[]> orders = new ArrayList<>(); // {user_id, product_id, quantity}, or null for an invalid order
+            boolean ok = sOrders != null && JsonReader.forEachObject(sOrders, new JsonFields(), o -> {
+                try {
+                    int[] order = {Integer.parseInt(o.get("user_id")), Integer.parseInt(o.get("product_id")),
+                            Integer.parseInt(o.get("quantity"))};
+                    orders.add(order[2] > 0 ? order : null);
+                } catch (Exception e) { // Missing or non-numeric field
+                    orders.add(null);
                 }
+            });
+            if (!ok) {
+                sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
+                return;
+            }
 
-                String updateBody = String.format("{\"command\":\"update\",\"id\":%d,\"quantity\":%d}", productId, (stock - qty));
-                HttpResult updateRes = httpPostJson("http://localhost:" + productPort + "/product", updateBody);
+            StringBuilder ids = new StringBuilder("{\"command\":\"lookup\",\"ids\":[");
+            Set<Integer> distinct = new HashSet<>();
+            for (int[] o : orders) {
+                if (o != null && distinct.add(o[0])) ids.append(distinct.size() > 1 ? "," : "").append(o[0]);
+            }
+            Trace trace = Trace.of(exchange);
+            CompletableFuture<HttpResult> lookup = distinct.isEmpty()
+                    ? CompletableFuture.completedFuture(new HttpResult(200, "{\"found\":[]}"))
+                    : client.postJson(userBase + "/user", ids.append("]}").toString(), trace);
+
+            lookup.thenCompose(userRes -> {
+                JsonFields found = new JsonFields();
+                int[] foundIds = userRes.code == 200 && JsonReader.parse(userRes.body, found) && found.get("found") != null
+                        ? JsonReader.readIntArray(found.get("found")) : null;
+                if (userRes.code == 503) throw new CompletionException(new ServiceClient.Overloaded("UserService"));
+                if (foundIds == null) throw new IllegalStateException("User lookup failed: " + userRes.code);
+                Set<Integer> users = new HashSet<>();
+                for (int id : foundIds) users.add(id);
+
+                // Orders of unknown users are answered 404 and left out of the reserve calls, the rest are grouped
+                // by the shard owning their product
+                int[] codes = new int[orders.size()];
+                Map<String, List<Integer>> byShard = new HashMap<>();
+                for (int i = 0; i < orders.size(); i++) {
+                    int[] o = orders.get(i);
+                    if (o == null) {
+                        codes[i] = 400;
+                    } else if (!users.contains(o[0])) {
+                        codes[i] = 404;
+                    } else {
+                        byShard.computeIfAbsent(shards.baseFor(o[1]), k -> new ArrayList<>()).add(i);
+                    }
+                }
 
-                if (updateRes.code == 200) {
-                    sendJson(exchange, 200, String.format("{\"product_id\":%d,\"user_id\":%d,\"quantity\":%d,\"status\":\"Success\"}", productId, userId, qty));
-                } else {
-                    sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
+                List<CompletableFuture<Void>> reserves = new ArrayList<>();
+                for (Map.Entry<String, List<Integer>> shard : byShard.entrySet()) {
+                    List<Integer> reserved = shard.getValue();
+                    StringBuilder items = new StringBuilder("{\"command\":\"reserve batch\",\"items\":[");
+                    for (int k = 0; k < reserved.size(); k++) {
+                        int[] o = orders.get(reserved.get(k));
+                        items.append(k > 0 ? "," : "")
+                                .append("{\"id\":").append(o[1]).append(",\"quantity\":").append(o[2]).append('}');
+                    }
+                    reserves.add(client.postJson(shard.getKey() + "/product", items.append("]}").toString(), trace).whenComplete((res, error) -> {
+                        for (int k : reserved) client.forget("/product/" + orders.get(k)[1]);
+                    }).thenAccept(reserveRes -> {
+                        JsonFields results = new JsonFields();
+                        int[] reserveCodes = reserveRes.code == 200 && JsonReader.parse(reserveRes.body, results)
+                                && results.get("results") != null ? JsonReader.readIntArray(results.get("results")) : null;
+                        if (reserveRes.code == 503) throw new CompletionException(new ServiceClient.Overloaded(shard.getKey()));
+                        if (reserveCodes == null || reserveCodes.length != reserved.size()) {
+                            throw new IllegalStateException("Batch reserve failed: " + reserveRes.code);
+                        }
+                        for (int k = 0; k < reserveCodes.length; k++) codes[reserved.get(k)] = reserveCodes[k];
+                    }));
                 }
+                return CompletableFuture.allOf(reserves.toArray(new CompletableFuture<?>[0]))
+                        .thenApply(done -> batchResult(orders, codes, trace));
+            }).exceptionally(e -> failure(e, new HttpResult(400, "{\"status\":\"Invalid Request\"}")))
+                    .thenAccept(result -> reply(exchange, result));
+        }
 
-            } catch (Exception e) {
-                sendJson(exchange, 400, "{\"status\":\"Invalid Request\"}");
+        /**
+         * Builds the batch response from the status code of each order, recording the placed ones in the ledger.
+         */
+        private HttpResult batchResult(List<int[]> orders, int[] codes, Trace trace) {
+            StringBuilder sb = new StringBuilder(32 + orders.size() * 96).append("{\"results\":[");
+            for (int i = 0; i < codes.length; i++) {
+                if (i > 0) sb.append(',');
+                int[] o = orders.get(i);
+                int code = codes[i] == 200 || codes[i] == 409 || codes[i] == 404 ? codes[i] : 400;
+                sb.append("{\"code\":").append(code).append(',');
+                if (code == 200) {
+                    long t = System.nanoTime();
+                    long orderId = ledger.append(o[0], o[1], o[2]);
+                    trace.add(Trace.STORAGE, t);
+                    sb.append(String.format("\"id\":%d,\"product_id\":%d,\"user_id\":%d,\"quantity\":%d,\"status\":\"Success\"}", orderId, o[1], o[0], o[2]));
+                } else if (code == 409) {
+                    sb.append("\"status\":\"Exceeded quantity limit\"}");
+                } else {
+                    sb.append("\"status\":\"Invalid Request\"}");
+                }
             }
+            return new HttpResult(200, sb.append("]}").toString());
         }
     }
 
@@ -216,62 +643,52 @@ public class OrderService {
         }
     }
 
-    private static Map<String, String> getRequestData(HttpExchange exchange) throws IOException {
-        return parseFlatJsonObject(readRequestBody(exchange));
+    private static JsonFields getRequestData(HttpExchange exchange) throws IOException {
+        long t = System.nanoTime();
+        JsonFields data = JsonFields.forThread();
+        JsonReader.read(exchange.getRequestBody(), data);
+        Trace.of(exchange).add(Trace.PARSE, t);
+        return data;
     }
 
     private static void sendJson(HttpExchange exchange, int code, String json) throws IOException {
+        long t = System.nanoTime();
         byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(code, bytes.length);
         try (OutputStream os = exchange.getResponseBody()) {
             os.write(bytes);
+            Trace.of(exchange).add(Trace.SERIALIZE, t); // Closing the stream finishes the trace
         }
         exchange.close();
     }
 
-    private static Map<String, String> parseFlatJsonObject(String body) {
-        Map<String, String> out = new HashMap<>();
-        if (body == null || body.trim().isEmpty()) return out;
-        String content = body.trim().replaceAll("[{}]", "");
-        for (String pair : content.split(",")) {
-            String[] parts = pair.split(":", 2);
-            if (parts.length == 2) {
-                out.put(parts[0].trim().replace("\"", ""), parts[1].trim().replace("\"", ""));
-            }
-        }
-        return out;
-    }
-
-    private static HttpResult httpGet(String urlStr) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) URI.create(urlStr).toURL().openConnection();
-        conn.setRequestMethod("GET");
-        int code = conn.getResponseCode();
-        return new HttpResult(code, readConnBody(conn, code));
+    /**
+     * @param e Why a downstream call chain failed.
+     * @param otherwise The answer for any failure other than an overloaded service or a passed deadline.
+     * @return UNAVAILABLE if a service was overloaded, TIMED_OUT if the deadline passed, otherwise otherwise.
+     */
+    private static HttpResult failure(Throwable e, HttpResult otherwise) {
+        while (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        if (e instanceof ServiceClient.DeadlineExceeded) return TIMED_OUT;
+        return e instanceof ServiceClient.Overloaded ? UNAVAILABLE : otherwise;
     }
 
-    private static HttpResult httpPostJson(String urlStr, String jsonBody) throws IOException {
-        HttpURLConnection conn = (HttpURLConnection) URI.create(urlStr).toURL().openConnection();
-        conn.setRequestMethod("POST");
-        conn.setDoOutput(true);
-        conn.setRequestProperty("Content-Type", "application/json");
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(jsonBody.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Writes a result from a completion callback, where there is no caller left to throw an IOException to. A 503
+     * also tells the caller when to try again, like the ones Admission sends.
+     */
+    private static void reply(HttpExchange exchange, HttpResult result) {
+        if (result.code == 503) exchange.getResponseHeaders().set("Retry-After", "1");
+        try {
+            sendJson(exchange, result.code, result.body);
+        } catch (IOException e) { // Client went away
+            exchange.close();
         }
-        int code = conn.getResponseCode();
-        return new HttpResult(code, readConnBody(conn, code));
     }
 
-    private static String readConnBody(HttpURLConnection conn, int code) throws IOException {
-        InputStream is = (code >= 200 && code < 400) ? conn.getInputStream() : conn.getErrorStream();
-        if (is == null) return "";
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) sb.append(line);
-            return sb.toString();
-        }
-    }
+    static final HttpResult UNAVAILABLE = new HttpResult(503, "{\"status\":\"Service Unavailable\"}");
+    static final HttpResult TIMED_OUT = new HttpResult(504, "{\"status\":\"Gateway Timeout\"}");
 
     static class HttpResult {
         final int code;
@@ -0,0 +1,187 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Routes product calls to the ProductService shard owning the product id. The shards are the "shards" list
+ * ("host:port" entries) in the ProductService section of config.json; without it the single configured
+ * ProductService (or the ISCS) is the only shard and every id goes there.
+ *
+ * A shard is added with addShard: every existing shard moves the products the new one owns over to it (see the
+ * ProductService's /product/export) and only then is the new ring used. Until then a product may already have
+ * moved, so a single product call that gets a 404 from the old owner is retried once on the new one. If a move
+ * fails the retry stays on, and calling addShard again with the same address finishes the move.
+ *
+ * Plain reads (GET /product/{id}) go round-robin to the read replicas of the owning shard if it has any. A replica
+ * answers 503 when it is too far behind its primary, and the read is then made on the primary, as it is when the
+ * replica is down or does not have the product (yet).
+ */
+class ProductShards {
+
+    private volatile ShardRing ring;
+    private volatile ShardRing next; // The ring being moved to until a shard is fully added, otherwise null
+    private boolean moving;          // Guarded by this, an addShard is running
+    private final Map<String, List<String>> replicas = new HashMap<>(); // Shard address to its replicas
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    /**
+     * @param shards The shard addresses, "host:port".
+     */
+    ProductShards(List<String> shards) {
+        this(shards, List.of());
+    }
+
+    /**
+     * @param shards The shard addresses, "host:port".
+     * @param replicaEntries Read replicas, "shard=replica" with both as "host:port", or only "replica" when there is
+     *                       a single shard.
+     * @throws IllegalArgumentException If an entry names no shard or an unknown one.
+     */
+    ProductShards(List<String> shards, List<String> replicaEntries) {
+        this.ring = new ShardRing(shards);
+        for (String entry : replicaEntries) {
+            int eq = entry.indexOf('=');
+            String shard = eq >= 0 ? entry.substring(0, eq) : shards.size() == 1 ? shards.get(0) : null;
+            if (shard == null || !shards.contains(shard)) {
+                throw new IllegalArgumentException("Replica " + entry + " does not name one of the shards");
+            }
+            replicas.computeIfAbsent(shard, k -> new ArrayList<>()).add(entry.substring(eq + 1));
+        }
+    }
+
+    /**
+     * @param id The product id.
+     * @return The base URL of the shard owning it, without a trailing slash.
+     */
+    String baseFor(int id) {
+        return "http://" + ring.owner(id);
+    }
+
+    /**
+     * While a shard is being added new products already go to their owner on the new ring, so the move cannot miss
+     * them; until the new ring is in use the retry in call finds them there.
+     * @param id The id of a product to create.
+     * @return The base URL of the shard to create it on.
+     */
+    String baseForCreate(int id) {
+        ShardRing pending = next;
+        return "http://" + (pending != null ? pending : ring).owner(id);
+    }
+
+    /**
+     * @return The current shard addresses.
+     */
+    List<String> shards() {
+        return ring.shards();
+    }
+
+    /**
+     * Makes a call about one product on the shard owning it.
+     * @param id The product id.
+     * @param send Makes the call given the shard's base URL.
+     * @return The call's result.
+     */
+    CompletableFuture<OrderService.HttpResult> call(int id, Function<String, CompletableFuture<OrderService.HttpResult>> send) {
+        String owner = ring.owner(id);
+        return send.apply("http://" + owner).thenCompose(res -> {
+            ShardRing pending = next;
+            String moved = (pending != null ? pending : ring).owner(id); // The new ring may be in use by now
+            if (res.code != 404 || moved.equals(owner)) return CompletableFuture.completedFuture(res);
+            return send.apply("http://" + moved); // Moved to the new shard since the first call
+        });
+    }
+
+    /**
+     * Reads one product from a replica of its shard, or from the shard itself when it has none or the replica cannot
+     * answer it.
+     * @param id The product id.
+     * @param send Makes the call given a base URL.
+     * @return The call's result.
+     */
+    CompletableFuture<OrderService.HttpResult> read(int id, Function<String, CompletableFuture<OrderService.HttpResult>> send) {
+        List<String> copies = next == null ? replicas.get(ring.owner(id)) : null; // Only the primaries know a move
+        if (copies == null) return call(id, send);
+        String replica = copies.get(Math.floorMod(nextReplica.getAndIncrement(), copies.size()));
+        return send.apply("http://" + replica).handle((res, e) -> e == null && res.code != 503 && res.code != 404
+                ? CompletableFuture.completedFuture(res)
+                : call(id, send)).thenCompose(Function.identity());
+    }
+
+    /**
+     * Adds a shard and moves the products it owns to it from the other shards. Only one shard is added at a time.
+     * @param address The new shard, "host:port", already running.
+     * @return {"shards":[...],"moved":N} once the new ring is in use, or a future failed if a shard could not move
+     *         its products. The old ring then stays in use, with the retry in call finding the products that did move.
+     */
+    synchronized CompletableFuture<String> addShard(String address) {
+        if (moving) return CompletableFuture.failedFuture(new IllegalStateException("A shard is already being added"));
+        if (ring.shards().contains(address)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Already a shard: " + address));
+        }
+        ShardRing target = next;
+        if (target == null) {
+            target = ring.with(address);
+        } else if (!target.shards().contains(address)) { // An earlier add failed halfway
+            String pending = target.shards().get(target.shards().size() - 1);
+            return CompletableFuture.failedFuture(new IllegalStateException("Finish adding " + pending + " first"));
+        }
+        ShardRing newRing = target;
+        next = newRing;
+        moving = true;
+
+        String exportBody = "{\"target\":" + JsonWriter.appendString(new StringBuilder(), address)
+                + ",\"shards\":" + jsonList(newRing.shards()) + "}";
+
+        // Moving a large catalog takes longer than the ServiceClient's read timeout allows
+        HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        List<CompletableFuture<Long>> exports = new ArrayList<>();
+        for (String shard : ring.shards()) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + shard + "/product/export"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(exportBody, StandardCharsets.UTF_8))
+                    .build();
+            exports.add(http.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(res -> {
+                JsonFields moved = new JsonFields();
+                if (res.statusCode() != 200 || !JsonReader.parse(res.body(), moved) || moved.get("moved") == null) {
+                    throw new IllegalStateException("Shard " + shard + " could not move its products: " + res.statusCode());
+                }
+                return Long.parseLong(moved.get("moved"));
+            }));
+        }
+
+        return CompletableFuture.allOf(exports.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            synchronized (this) {
+                moving = false;
+                if (error == null) {
+                    ring = newRing;
+                    next = null;
+                }
+            }
+            if (error != null) throw new IllegalStateException("Adding shard " + address + " failed", error);
+
+            long total = 0;
+            for (CompletableFuture<Long> e : exports) total += e.join();
+            System.out.println("Added product shard " + address + ", moved " + total + " products");
+            return "{\"shards\":" + jsonList(newRing.shards()) + ",\"moved\":" + total + "}";
+        });
+    }
+
+    /**
+     * @return The addresses as a JSON array of strings.
+     */
+    static String jsonList(List<String> addresses) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String a : addresses) JsonWriter.appendString(sb.length() > 1 ? sb.append(',') : sb, a);
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,674 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Shared HTTP client for the OrderService's calls to the User/Product services (or the ISCS). It reuses keep-alive
+ * connections, caps how many requests can be in flight to each host, applies connect/read timeouts and never blocks
+ * the calling thread: every call returns a CompletableFuture. How many calls may be in flight to a host adapts to
+ * how the host copes (see HostLimiter), and a call that would queue behind too many others, or has waited too long
+ * for its turn, fails with Overloaded, which the OrderService answers with a 503. Every call's latency, including time spent waiting for
+ * a free connection, is recorded per host and route on /metrics, and added to the downstream phase of the trace
+ * of the request that made it, whose X-Request-Id is sent along.
+ *
+ * When that request has a deadline, what is left of it is sent along in X-Deadline-Ms and the call is not given
+ * longer than that. A call made once the deadline has passed, or cut short by it, fails with DeadlineExceeded,
+ * which the OrderService answers with a 504.
+ *
+ * Reads can be shared (see shared): concurrent GETs of one path make one call and all get its result, so a hot
+ * product or user costs the services one read per round trip however many requests want it.
+ *
+ * A GET still unanswered after the host's recent p95 latency is hedged: a second copy is sent and the first answer
+ * wins, so one stalled connection or handler (a GC pause, a lost packet) does not hold the request up. Through the
+ * ISCS the copy of a product read may go to another replica. Each host also has a circuit breaker (see Breaker):
+ * after a run of failed calls it refuses calls at once with CircuitOpen, a kind of Overloaded, until a probe call
+ * gets through again.
+ *
+ * The calls an order makes (getUser, getProduct, adjustStock) can go over the binary transport instead (see
+ * useBinary and BinaryClient): one small frame each way on a connection shared by every call in flight. They keep
+ * the breaker, deadline and metrics of HTTP calls, but are not hedged and do not send X-Request-Id.
+ */
+class ServiceClient {
+
+    private final HttpClient client;
+    private final Duration readTimeout;
+    private final int maxConnectionsPerHost;
+    private final int queueLimitPerHost;
+    private final long queueBudgetNanos;
+    private final boolean hedgeGets;
+    private final int breakerFailures;
+    private final long breakerOpenNanos;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<OrderService.HttpResult>> flights = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder circuitRejected = new LongAdder();
+    private BinaryClient binary; // Set by useBinary, null for HTTP only
+    private int userPortOffset;
+    private int productPortOffset;
+
+    /**
+     * @param connectTimeoutMs Time allowed to open a new connection.
+     * @param readTimeoutMs Time allowed from sending a request until its response arrives.
+     * @param maxConnectionsPerHost Most requests in flight to one host, further calls wait in a queue.
+     * @param queueLimitPerHost Most calls waiting for one host, further calls fail with Overloaded.
+     * @param queueBudgetMs Longest a call may wait for its turn, one that waited longer fails with Overloaded.
+     * @param hedgeGets Whether GETs slower than the host's p95 get a second copy.
+     * @param breakerFailures Failed calls in a row that open a host's circuit breaker.
+     * @param breakerOpenMs How long an open breaker refuses calls before letting a probe through.
+     */
+    ServiceClient(int connectTimeoutMs, int readTimeoutMs, int maxConnectionsPerHost, int queueLimitPerHost,
+                  int queueBudgetMs, boolean hedgeGets, int breakerFailures, int breakerOpenMs) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1) // The services only speak HTTP/1.1, keep-alive is on by default
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build();
+        this.readTimeout = Duration.ofMillis(readTimeoutMs);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.queueLimitPerHost = queueLimitPerHost;
+        this.queueBudgetNanos = queueBudgetMs * 1_000_000L;
+        this.hedgeGets = hedgeGets;
+        this.breakerFailures = breakerFailures;
+        this.breakerOpenNanos = breakerOpenMs * 1_000_000L;
+    }
+
+    /**
+     * Sends a GET request, and a second copy of it if the first is slower than the host's p95 (see hedgeGets).
+     * @param url The full URL.
+     * @param trace The trace of the request this call is made for, Trace.NONE if there is none.
+     * @return The first status code and body to arrive, or a future failed with the IOException if every copy
+     *         failed.
+     */
+    CompletableFuture<OrderService.HttpResult> get(String url, Trace trace) {
+        URI uri = URI.create(url);
+        CompletableFuture<OrderService.HttpResult> first = send(HttpRequest.newBuilder(uri).GET(), trace, false);
+        Host host = hosts.get(uri.getAuthority());
+        long delay = hedgeGets && host != null ? host.latency.p95() : 0;
+        if (delay == 0 || first.isDone()) return first;
+
+        CompletableFuture<OrderService.HttpResult> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1); // Copies sent and not answered, the last failure fails result
+        first.whenComplete((res, e) -> settle(result, pending, res, e));
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+            if (result.isDone() || !host.startHedge()) return;
+            int n;
+            do { // Not once the first copy has failed and given up
+                n = pending.get();
+                if (n == 0) {
+                    host.endHedge();
+                    return;
+                }
+            } while (!pending.compareAndSet(n, n + 1));
+            hedges.increment();
+            send(HttpRequest.newBuilder(uri).GET(), trace, true).whenComplete((res, e) -> {
+                host.endHedge();
+                if (settle(result, pending, res, e)) hedgeWins.increment();
+            });
+        });
+        return result;
+    }
+
+    // Any answer completes the result, a failure only once no other copy can still answer
+    private static boolean settle(CompletableFuture<OrderService.HttpResult> result, AtomicInteger pending,
+                                  OrderService.HttpResult res, Throwable e) {
+        if (e == null) return result.complete(res);
+        if (pending.decrementAndGet() == 0) result.completeExceptionally(e);
+        return false;
+    }
+
+    /**
+     * Sends a POST request with a JSON body.
+     * @param url The full URL.
+     * @param jsonBody The request body.
+     * @param trace The trace of the request this call is made for, Trace.NONE if there is none.
+     * @return The status code and body, or a future failed with the IOException.
+     */
+    CompletableFuture<OrderService.HttpResult> postJson(String url, String jsonBody, Trace trace) {
+        return send(HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(jsonBody, StandardCharsets.UTF_8)), trace, false);
+    }
+
+    /**
+     * Makes a read, or joins the same read if one is already in flight. The result is shared by every caller that
+     * joined before it came back, and the next caller makes a new call, so nothing is served later than the call it
+     * came from. Writes through the OrderService end the flight of what they changed (see forget), so a read made
+     * after a write never gets the result of a call sent before it. The call is made with the trace (id and deadline)
+     * of the caller that started it. A caller that joins waits no longer than its own deadline, failing with
+     * DeadlineExceeded after it, and makes a call of its own if the flight failed only because the deadline of the
+     * caller that started it passed.
+     * @param key The path read, e.g. /product/7, the same whichever instance the call goes to.
+     * @param call Makes the call when there is none in flight.
+     * @param trace The trace of the request, the wait for a joined call is added to its downstream phase.
+     * @return The status code and body, or a future failed with the IOException.
+     */
+    CompletableFuture<OrderService.HttpResult> shared(String key, Supplier<CompletableFuture<OrderService.HttpResult>> call,
+                                                      Trace trace) {
+        CompletableFuture<OrderService.HttpResult> flight = flights.get(key);
+        if (flight == null) {
+            CompletableFuture<OrderService.HttpResult> mine = new CompletableFuture<>();
+            flight = flights.putIfAbsent(key, mine);
+            if (flight == null) {
+                try {
+                    call.get().whenComplete((result, error) -> {
+                        flights.remove(key, mine); // Before completing, so no one joins a finished call
+                        if (error != null) mine.completeExceptionally(error);
+                        else mine.complete(result);
+                    });
+                } catch (RuntimeException e) { // e.g. a malformed URL, there is nothing to share
+                    flights.remove(key, mine);
+                    mine.completeExceptionally(e);
+                }
+                return mine;
+            }
+        }
+        coalesced.increment();
+        long remaining = trace.remainingNanos();
+        if (remaining <= 0) return CompletableFuture.failedFuture(new DeadlineExceeded());
+        long start = System.nanoTime();
+        CompletableFuture<OrderService.HttpResult> joined = flight.copy(); // Timing out the copy leaves the flight be
+        if (remaining != Long.MAX_VALUE) joined.orTimeout(remaining, TimeUnit.NANOSECONDS);
+        return joined.handle((result, error) -> {
+            trace.add(Trace.DOWNSTREAM, start);
+            Throwable cause = error;
+            while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+            if (cause instanceof TimeoutException) {
+                return CompletableFuture.<OrderService.HttpResult>failedFuture(new DeadlineExceeded());
+            }
+            if (cause instanceof DeadlineExceeded && !trace.expired()) return shared(key, call, trace); // Only the leader's
+            return error != null ? CompletableFuture.<OrderService.HttpResult>failedFuture(cause)
+                    : CompletableFuture.completedFuture(result);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Ends the flight of a read, so later callers of shared make a new call. The callers already waiting on it
+     * still get its result, they were concurrent with the write.
+     * @param key The path the write changed, as given to shared.
+     */
+    void forget(String key) {
+        flights.remove(key);
+    }
+
+    /**
+     * @return The calls saved by joining one already in flight, since startup.
+     */
+    long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return The second copies of slow GETs sent, since startup.
+     */
+    long hedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return The second copies that answered first, since startup.
+     */
+    long hedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return The calls refused by an open circuit breaker, since startup.
+     */
+    long circuitRejected() {
+        return circuitRejected.sum();
+    }
+
+    // A hedge skips the queue: the call it backs up may be holding the slot it would wait for
+    private CompletableFuture<OrderService.HttpResult> send(HttpRequest.Builder builder, Trace trace, boolean hedge) {
+        if (!trace.id.isEmpty()) builder.header(Trace.HEADER, trace.id);
+        long remaining = trace.remainingNanos();
+        if (remaining <= 0) return CompletableFuture.failedFuture(new DeadlineExceeded());
+        Duration timeout = readTimeout;
+        if (remaining != Long.MAX_VALUE) {
+            builder.header(Trace.DEADLINE_HEADER, Long.toString((remaining + 999_999) / 1_000_000));
+            timeout = Duration.ofNanos(Math.min(remaining, readTimeout.toNanos()));
+        }
+        HttpRequest request = builder.timeout(timeout).build();
+        long timeoutNanos = timeout.toNanos();
+        String host = request.uri().getAuthority();
+        Host h = host(host);
+        HostLimiter limiter = h.limiter;
+        long start = System.nanoTime();
+
+        int admitted = h.breaker.admit();
+        if (admitted == Breaker.REJECT) {
+            circuitRejected.increment();
+            Metrics.recordCall(host, route(request), request.method(), 0, 0);
+            return CompletableFuture.failedFuture(new CircuitOpen(host));
+        }
+        CompletableFuture<OrderService.HttpResult> result = new CompletableFuture<>();
+        boolean queued = limiter.submit(hedge, () -> {
+            long sent = System.nanoTime();
+            if (sent - start > queueBudgetNanos || trace.expired()) { // The caller has likely given up already
+                limiter.release(0, false);
+                h.breaker.abandon(admitted);
+                Metrics.recordCall(host, route(request), request.method(), 0, sent - start);
+                result.completeExceptionally(trace.expired() ? new DeadlineExceeded() : new Overloaded(host));
+                return;
+            }
+            try {
+                client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                        .whenComplete((response, error) -> {
+                            long rtt = System.nanoTime() - sent;
+                            if (error != null && cutShort(error, trace, timeoutNanos)) {
+                                limiter.release(0, false);
+                                h.breaker.abandon(admitted);
+                            } else {
+                                limiter.release(rtt, error != null || response.statusCode() == 503);
+                                // A 503 or 504 is the host shedding load, which the limiter answers, not a fault
+                                h.breaker.done(admitted, error == null && (response.statusCode() < 500
+                                        || response.statusCode() == 503 || response.statusCode() == 504));
+                            }
+                            if (error == null && "GET".equals(request.method())) h.latency.add(rtt);
+                            long elapsed = trace.add(Trace.DOWNSTREAM, start) - start;
+                            Metrics.recordCall(host, route(request), request.method(),
+                                    error != null ? 0 : response.statusCode(), elapsed);
+                            if (error != null && trace.expired()) result.completeExceptionally(new DeadlineExceeded());
+                            else if (error != null) result.completeExceptionally(error);
+                            else result.complete(new OrderService.HttpResult(response.statusCode(), response.body()));
+                        });
+            } catch (RuntimeException e) { // e.g. a malformed URL, the request never left
+                limiter.release(0, false);
+                h.breaker.abandon(admitted);
+                result.completeExceptionally(e);
+            }
+        });
+        if (!queued) {
+            h.breaker.abandon(admitted);
+            Metrics.recordCall(host, route(request), request.method(), 0, 0);
+            result.completeExceptionally(new Overloaded(host));
+        }
+        return result;
+    }
+
+    private Host host(String address) {
+        return hosts.computeIfAbsent(address, k -> new Host(k, maxConnectionsPerHost, queueLimitPerHost,
+                breakerFailures, breakerOpenNanos));
+    }
+
+    /**
+     * Sends getUser, getProduct and adjustStock over the binary transport from now on, to services that listen on
+     * one (a port offset other than 0). Set before the first call.
+     * @param binary The binary client.
+     * @param userPortOffset "binaryPortOffset" of the UserService section.
+     * @param productPortOffset "binaryPortOffset" of the ProductService section.
+     */
+    void useBinary(BinaryClient binary, int userPortOffset, int productPortOffset) {
+        this.binary = binary;
+        this.userPortOffset = userPortOffset;
+        this.productPortOffset = productPortOffset;
+    }
+
+    /**
+     * Reads a user, as a GET of /user/{id} would.
+     * @param base The UserService's base URL.
+     * @param id The user id.
+     * @param trace The trace of the request this call is made for, Trace.NONE if there is none.
+     * @return The status code and body, or a future failed with the IOException.
+     */
+    CompletableFuture<OrderService.HttpResult> getUser(String base, int id, Trace trace) {
+        if (binary == null || userPortOffset == 0) return get(base + "/user/" + id, trace);
+        return binaryCall(base, userPortOffset, "/user", BinaryServer.GET_USER, id, 0, trace);
+    }
+
+    /**
+     * Reads a product, as a GET of /product/{id} would.
+     * @param base The base URL of the ProductService (shard or replica) holding it.
+     * @param id The product id.
+     * @param trace The trace of the request this call is made for, Trace.NONE if there is none.
+     * @return The status code and body, or a future failed with the IOException.
+     */
+    CompletableFuture<OrderService.HttpResult> getProduct(String base, int id, Trace trace) {
+        if (binary == null || productPortOffset == 0) return get(base + "/product/" + id, trace);
+        return binaryCall(base, productPortOffset, "/product", BinaryServer.GET_PRODUCT, id, 0, trace);
+    }
+
+    /**
+     * Reserves or releases stock, as a "reserve" or "release" POST to /product would.
+     * @param base The base URL of the ProductService (shard) holding the product.
+     * @param id The product id.
+     * @param delta Units to release, or minus the units to reserve. Not 0.
+     * @param trace The trace of the request this call is made for, Trace.NONE if there is none.
+     * @return The status code and body, or a future failed with the IOException.
+     */
+    CompletableFuture<OrderService.HttpResult> adjustStock(String base, int id, int delta, Trace trace) {
+        if (binary == null || productPortOffset == 0) {
+            return postJson(base + "/product", String.format("{\"command\":\"%s\",\"id\":%d,\"quantity\":%d}",
+                    delta < 0 ? "reserve" : "release", id, Math.abs(delta)), trace);
+        }
+        return binaryCall(base, productPortOffset, "/product", BinaryServer.ADJUST_STOCK, id, delta, trace);
+    }
+
+    // Shares the host's breaker with its HTTP calls. There is no connection to wait for, so no HostLimiter either
+    private CompletableFuture<OrderService.HttpResult> binaryCall(String base, int portOffset, String route, byte type,
+                                                                  int id, int arg, Trace trace) {
+        long remaining = trace.remainingNanos();
+        if (remaining <= 0) return CompletableFuture.failedFuture(new DeadlineExceeded());
+        URI uri = URI.create(base);
+        String host = uri.getAuthority();
+        String method = type == BinaryServer.ADJUST_STOCK ? "POST" : "GET";
+        Host h = host(host);
+        long start = System.nanoTime();
+
+        int admitted = h.breaker.admit();
+        if (admitted == Breaker.REJECT) {
+            circuitRejected.increment();
+            Metrics.recordCall(host, route, method, 0, 0);
+            return CompletableFuture.failedFuture(new CircuitOpen(host));
+        }
+        CompletableFuture<OrderService.HttpResult> result = new CompletableFuture<>();
+        long timeoutNanos = Math.min(remaining, readTimeout.toNanos());
+        binary.call(uri.getHost(), uri.getPort() + portOffset, type, id, arg, timeoutNanos)
+                .whenComplete((res, error) -> {
+                    if (error != null && cutShort(error, trace, timeoutNanos)) h.breaker.abandon(admitted);
+                    else h.breaker.done(admitted, error == null && (res.code < 500 || res.code == 503 || res.code == 504));
+                    long elapsed = trace.add(Trace.DOWNSTREAM, start) - start;
+                    Metrics.recordCall(host, route, method, error != null ? 0 : res.code, elapsed);
+                    if (error != null && trace.expired()) result.completeExceptionally(new DeadlineExceeded());
+                    else if (error != null) result.completeExceptionally(error);
+                    else result.complete(res);
+                });
+        return result;
+    }
+
+    /**
+     * A call refused without being sent because too many calls to its host were waiting, or it waited too long.
+     */
+    static class Overloaded extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Overloaded(String host) {
+            super("Too many calls waiting for " + host);
+        }
+
+        Overloaded(String host, String message) {
+            super(message + " " + host);
+        }
+    }
+
+    /**
+     * A call refused without being sent because the circuit breaker of its host is open.
+     */
+    static class CircuitOpen extends Overloaded {
+        private static final long serialVersionUID = 1L;
+
+        CircuitOpen(String host) {
+            super(host, "Circuit breaker open for");
+        }
+    }
+
+    /**
+     * Tells a call ended by the caller's own deadline from one the host failed: only a timeout at the full
+     * readTimeout, or another error before the deadline, counts against the host's breaker and limit. Otherwise a
+     * few requests with a tiny X-Deadline-Ms would open the breaker of a healthy host for everyone.
+     */
+    private boolean cutShort(Throwable error, Trace trace, long timeoutNanos) {
+        while (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        return trace.expired() || (error instanceof HttpTimeoutException && timeoutNanos < readTimeout.toNanos());
+    }
+
+    /**
+     * A call not sent, or cut short, because the deadline of the request it was made for passed.
+     */
+    static class DeadlineExceeded extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DeadlineExceeded() {
+            super("Deadline exceeded");
+        }
+    }
+
+    // First path segment, so /user/12 and /user/34 share one metric
+    private static String route(HttpRequest request) {
+        String path = request.uri().getPath();
+        if (path == null || path.isEmpty()) return "/";
+        int end = path.indexOf('/', 1);
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    /**
+     * Everything kept per host.
+     */
+    static class Host {
+        final HostLimiter limiter;
+        final Breaker breaker;
+        final Latencies latency = new Latencies();
+        private final AtomicInteger hedging = new AtomicInteger();
+        private final int maxHedging;
+
+        Host(String address, int maxConnections, int queueLimit, int breakerFailures, long breakerOpenNanos) {
+            this.limiter = new HostLimiter(maxConnections, queueLimit);
+            this.breaker = new Breaker(address, breakerFailures, breakerOpenNanos);
+            this.maxHedging = Math.max(1, maxConnections / 8);
+        }
+
+        /**
+         * @return False if too many hedges to this host are in flight already, as when the whole host is slow.
+         */
+        boolean startHedge() {
+            if (hedging.incrementAndGet() <= maxHedging) return true;
+            hedging.decrementAndGet();
+            return false;
+        }
+
+        void endHedge() {
+            hedging.decrementAndGet();
+        }
+    }
+
+    /**
+     * The p95 of a host's recent GET round trips: the last WINDOW of them are kept, and the p95 is worked out again
+     * every STEP calls. Zero until there are STEP of them, so nothing is hedged on a guess.
+     */
+    static class Latencies {
+        private static final int WINDOW = 512;
+        private static final int STEP = 64;
+
+        private final long[] samples = new long[WINDOW]; // Guarded by this
+        private long count;                              // Guarded by this
+        private volatile long p95;
+
+        long p95() {
+            return p95;
+        }
+
+        synchronized void add(long rtt) {
+            samples[(int) (count++ % WINDOW)] = rtt;
+            if (count % STEP == 0) {
+                long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, WINDOW));
+                Arrays.sort(sorted);
+                p95 = sorted[sorted.length * 95 / 100];
+            }
+        }
+    }
+
+    /**
+     * Circuit breaker for one host. Closed, every call goes through, and `failures` failed calls in a row (errors,
+     * timeouts and 5xx answers other than 503/504) open it. Open, calls are refused for openNanos; after that it is
+     * half open and lets one probe call through. The probe closes it if it succeeds and opens it again if not.
+     * Calls that were already in flight when it opened do not change it.
+     */
+    static class Breaker {
+        static final int REJECT = 0, NORMAL = 1, PROBE = 2;
+
+        private final String host;
+        private final int failures;
+        private final long openNanos;
+        private final AtomicInteger failed = new AtomicInteger(); // In a row while closed
+        private final AtomicLong openUntil = new AtomicLong();    // 0 while closed
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        Breaker(String host, int failures, long openNanos) {
+            this.host = host;
+            this.failures = failures;
+            this.openNanos = openNanos;
+        }
+
+        /**
+         * @return REJECT if the call must not be made, otherwise NORMAL or PROBE, to be passed to done or abandon.
+         */
+        int admit() {
+            long until = openUntil.get();
+            if (until == 0) return NORMAL;
+            if (System.nanoTime() < until || !probing.compareAndSet(false, true)) return REJECT;
+            return PROBE;
+        }
+
+        /**
+         * Records how an admitted call went.
+         */
+        void done(int admitted, boolean ok) {
+            if (admitted == PROBE) {
+                if (ok) {
+                    failed.set(0);
+                    openUntil.set(0);
+                    System.out.println("Circuit breaker for " + host + " closed");
+                } else {
+                    openUntil.set(System.nanoTime() + openNanos);
+                }
+                probing.set(false);
+            } else if (ok) {
+                if (failed.get() != 0) failed.set(0); // Most calls succeed, they need not all write the line
+            } else if (failed.incrementAndGet() >= failures && openUntil.compareAndSet(0, System.nanoTime() + openNanos)) {
+                System.out.println("Circuit breaker for " + host + " opened after " + failures + " failed calls");
+            }
+        }
+
+        /**
+         * Forgets an admitted call that was never sent.
+         */
+        void abandon(int admitted) {
+            if (admitted == PROBE) probing.set(false);
+        }
+    }
+
+    /**
+     * Lets a limited number of requests to one host run at once. The rest wait in a queue, up to queueLimit of them,
+     * and start as earlier ones finish.
+     *
+     * The limit adapts to the host (additive increase, multiplicative decrease): every call that comes back fine
+     * adds 1/limit, so about one per round trip's worth of calls, up to max. A call that fails, is answered 503 or
+     * takes more than twice the host's shortest recent round trip (plus SLACK_NANOS) cuts it by a quarter, at most
+     * once per round trip and never below 1. So an overloaded host gets fewer calls at once instead of a longer
+     * queue, and the calls beyond it wait here, where they are refused once the queue is full.
+     */
+    static class HostLimiter {
+        private static final int WINDOW = 1000; // Calls per round trip baseline, so it follows a host that got slower
+        private static final long SLACK_NANOS = 5_000_000;
+
+        private final int max;
+        private final int queueLimit;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+        private volatile int limit;
+
+        // Guarded by this
+        private double exactLimit;
+        private long minRtt = Long.MAX_VALUE;    // Shortest round trip of the last window
+        private long windowMin = Long.MAX_VALUE; // Shortest round trip of the current window
+        private int windowCalls;
+        private long lastDecrease;
+
+        HostLimiter(int max, int queueLimit) {
+            this.max = max;
+            this.queueLimit = queueLimit;
+            this.limit = max;
+            this.exactLimit = max;
+        }
+
+        /**
+         * @param now Run the task at once even if the limit is reached, still counting it in flight.
+         * @return False if the queue is full and the task was not taken.
+         */
+        boolean submit(boolean now, Runnable task) {
+            if (now) {
+                inFlight.incrementAndGet();
+                task.run();
+                return true;
+            }
+            if (queued.incrementAndGet() > queueLimit) {
+                queued.decrementAndGet();
+                return false;
+            }
+            waiting.add(task);
+            drain();
+            return true;
+        }
+
+        /**
+         * Ends a call started by a task.
+         * @param rttNanos Time from sending it until it completed.
+         * @param failed True if it failed or the host answered 503.
+         */
+        void release(long rttNanos, boolean failed) {
+            if (rttNanos > 0) adapt(rttNanos, failed);
+            inFlight.decrementAndGet();
+            drain();
+        }
+
+        private synchronized void adapt(long rtt, boolean failed) {
+            if (!failed) {
+                windowMin = Math.min(windowMin, rtt);
+                if (++windowCalls == WINDOW) {
+                    minRtt = windowMin;
+                    windowMin = Long.MAX_VALUE;
+                    windowCalls = 0;
+                }
+            }
+            long baseline = Math.min(minRtt, windowMin);
+            boolean congested = failed || (baseline != Long.MAX_VALUE && rtt > 2 * baseline + SLACK_NANOS);
+            long now = System.nanoTime();
+            if (!congested) {
+                exactLimit = Math.min(max, exactLimit + 1 / exactLimit);
+            } else if (now - lastDecrease > rtt) { // The calls already in flight saw the same overload
+                exactLimit = Math.max(1, exactLimit * 0.75);
+                lastDecrease = now;
+            }
+            limit = (int) exactLimit;
+        }
+
+        // Every submit and release ends here, so a queued task cannot be missed once a slot frees up
+        private void drain() {
+            while (!waiting.isEmpty()) {
+                int n = inFlight.get();
+                if (n >= limit) return;
+                if (!inFlight.compareAndSet(n, n + 1)) continue;
+
+                Runnable task = waiting.poll();
+                if (task == null) { // Another thread took it, give the slot back
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                queued.decrementAndGet();
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The primary's record of committed product changes, streamed to read replicas. Every change gets the next sequence
+ * number and sits in a fixed ring of the latest ones, holding the product as it is after the change (or only its id
+ * for a delete), so applying changes again or out of date only ever moves a replica towards the primary's state.
+ *
+ * A replica opens GET /replication/changes and reads one endless binary response: a RESET, a PUT for every product
+ * (the snapshot), then every change from the moment it connected, in order. While nothing changes a HEARTBEAT every
+ * HEARTBEAT_MS tells the replica it is up to date as of the primary's clock. A replica that falls more than the ring
+ * behind is disconnected and starts over with a new snapshot.
+ *
+ * Record format: [byte type][long seq][long primary millis], then for PUT [int id][string name][string description]
+ * [float price][int quantity] and for DELETE [int id]. Strings are [int length][UTF-8 bytes].
+ */
+final class ChangeLog {
+
+    static final byte RESET = 0, PUT = 1, DELETE = 2, HEARTBEAT = 3;
+    static final int HEARTBEAT_MS = 100;
+    private static final int READ_BATCH = 256;
+
+    private final Change[] ring;
+    private final int mask;
+    private long next;   // Guarded by this, the seq of the next change
+    private int waiting; // Guarded by this, streams waiting for a change
+    private final AtomicInteger followers = new AtomicInteger();
+
+    /**
+     * @param capacity Changes kept for replicas that are behind, rounded up to a power of two.
+     */
+    ChangeLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) * 2 - 1);
+        ring = new Change[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Records a committed change. Callers append changes to one id in the order they were made.
+     * @param id The product id.
+     * @param product The product after the change, or null if it was deleted.
+     */
+    synchronized void append(int id, Product product) {
+        ring[(int) (next & mask)] = new Change(next, System.currentTimeMillis(), id, product);
+        next++;
+        if (waiting > 0) notifyAll();
+    }
+
+    /**
+     * @return The seq of the latest change, -1 before the first one.
+     */
+    synchronized long lastSeq() {
+        return next - 1;
+    }
+
+    /**
+     * @return The replicas currently streaming.
+     */
+    int followers() {
+        return followers.get();
+    }
+
+    /**
+     * Waits up to HEARTBEAT_MS for changes from seq on.
+     * @return The changes in order, empty if there were none, or null if the oldest one has left the ring.
+     */
+    private synchronized Change[] read(long seq) throws InterruptedException {
+        if (seq == next) {
+            waiting++;
+            try {
+                wait(HEARTBEAT_MS);
+            } finally {
+                waiting--;
+            }
+        }
+        if (next - seq > ring.length) return null;
+        int n = (int) Math.min(next - seq, READ_BATCH);
+        Change[] changes = new Change[n];
+        for (int i = 0; i < n; i++) changes[i] = ring[(int) ((seq + i) & mask)];
+        return changes;
+    }
+
+    /**
+     * Streams the store and then its changes to one replica until it disconnects or falls too far behind. Runs on
+     * its own thread for as long as the replica is connected, so it does not hold a request thread.
+     * @param exchange The replica's GET /replication/changes.
+     * @param store The primary's store.
+     */
+    void stream(HttpExchange exchange, ProductStore store) {
+        followers.incrementAndGet();
+        String replica = exchange.getRemoteAddress().toString();
+        System.out.println("Replica " + replica + " connected");
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody(), 1 << 16));
+
+            // Changes made while the snapshot is read are sent after it; they repeat or overtake what it saw
+            long seq = lastSeq() + 1;
+            long started = System.currentTimeMillis(); // The snapshot is at least as fresh as this
+            writeHeader(out, RESET, seq - 1, started);
+            int[][] ids = {new int[1024]}; // Collected first, the mapped store holds its lock during the walk
+            int[] n = {0};
+            store.forEachId(id -> {
+                if (n[0] == ids[0].length) ids[0] = Arrays.copyOf(ids[0], n[0] * 2);
+                ids[0][n[0]++] = id;
+            });
+            for (int i = 0; i < n[0]; i++) {
+                Product p = store.get(ids[0][i]);
+                if (p != null) writeChange(out, new Change(seq - 1, started, p.id, p));
+            }
+            out.flush();
+
+            while (true) {
+                Change[] changes = read(seq);
+                if (changes == null) {
+                    System.out.println("Replica " + replica + " fell more than " + ring.length + " changes behind");
+                    break;
+                }
+                if (changes.length == 0) {
+                    writeHeader(out, HEARTBEAT, seq - 1, System.currentTimeMillis());
+                } else {
+                    for (Change c : changes) writeChange(out, c);
+                    seq += changes.length;
+                }
+                out.flush();
+            }
+        } catch (IOException e) { // Replica went away
+            System.out.println("Replica " + replica + " disconnected");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, byte type, long seq, long millis) throws IOException {
+        out.writeByte(type);
+        out.writeLong(seq);
+        out.writeLong(millis);
+    }
+
+    private static void writeChange(DataOutputStream out, Change c) throws IOException {
+        if (c.product == null) {
+            writeHeader(out, DELETE, c.seq, c.millis);
+            out.writeInt(c.id);
+            return;
+        }
+        writeHeader(out, PUT, c.seq, c.millis);
+        out.writeInt(c.id);
+        writeString(out, c.product.name);
+        writeString(out, c.product.description);
+        out.writeFloat(c.product.price);
+        out.writeInt(c.product.quantity);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static final class Change {
+        final long seq;
+        final long millis;
+        final int id;
+        final Product product;
+
+        Change(long seq, long millis, int id, Product product) {
+            this.seq = seq;
+            this.millis = millis;
+            this.id = id;
+            this.product = product;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Wraps the primary's store so a product moving to another shard is still served here until the new shard has it.
+ * The export takes a product out of the wrapped store and holds it until its batch has landed on the target: a GET
+ * meanwhile answers the held copy, and a change to it waits for the batch and is then tried again, so it either finds
+ * the product put back (the target did not take the batch) or gets a 404 and the OrderService retries on the new
+ * owner. The held copy cannot change, so the target gets exactly what was taken. Other products go straight
+ * through, and the map of held products is only looked at when the wrapped store found nothing.
+ */
+class HandoffStore implements ProductStore {
+
+    private final ProductStore store;
+    private final Map<Integer, Product> moving = new ConcurrentHashMap<>();
+
+    HandoffStore(ProductStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Takes a product out of the store to send it to another shard; it is still read from here until landed.
+     * @param id The product id.
+     * @return The product taken, or null if there is none.
+     */
+    Product take(int id) {
+        Product[] taken = new Product[1];
+        while (true) {
+            taken[0] = null;
+            // Held before it is removed, so no GET in between misses it
+            if (store.remove(id, p -> { taken[0] = p; moving.put(id, p); return true; })) return taken[0];
+            if (taken[0] == null) return null;
+            moving.remove(id, taken[0]); // Changed before the remove, take the new one
+        }
+    }
+
+    /**
+     * Ends the move of products taken with take and wakes the changes waiting for them.
+     * @param batch The products taken.
+     * @param landed True if the target has them, otherwise they are put back here.
+     */
+    void landed(List<Product> batch, boolean landed) {
+        if (!landed) store.insertAll(batch);
+        synchronized (this) {
+            for (Product p : batch) moving.remove(p.id);
+            notifyAll();
+        }
+    }
+
+    private void await(int id) {
+        synchronized (this) {
+            while (moving.containsKey(id)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Product get(int id) {
+        Product p = store.get(id);
+        return p != null ? p : moving.get(id);
+    }
+
+    @Override
+    public boolean insert(Product p) {
+        if (moving.containsKey(p.id)) await(p.id);
+        return store.insert(p);
+    }
+
+    @Override
+    public int insertAll(List<Product> batch) {
+        return store.insertAll(batch);
+    }
+
+    @Override
+    public Product update(int id, UnaryOperator<Product> change) {
+        Product updated = store.update(id, change);
+        if (updated != null || !moving.containsKey(id)) return updated;
+        await(id);
+        return store.update(id, change);
+    }
+
+    @Override
+    public Product reserve(int id, int qty) {
+        Product reserved = store.reserve(id, qty);
+        if (reserved != null || !moving.containsKey(id)) return reserved;
+        await(id);
+        return store.reserve(id, qty);
+    }
+
+    @Override
+    public boolean remove(int id, Predicate<Product> matches) {
+        if (store.remove(id, matches)) return true;
+        if (!moving.containsKey(id)) return false;
+        await(id);
+        return store.remove(id, matches);
+    }
+
+    @Override
+    public void forEachId(IntConsumer action) {
+        store.forEachId(action);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+}
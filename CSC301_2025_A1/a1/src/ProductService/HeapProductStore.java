@@ -0,0 +1,52 @@
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Default store: one Product object per id in an int keyed concurrent map on the heap.
+ */
+class HeapProductStore implements ProductStore {
+
+    private final IntConcurrentMap<Product> products = new IntConcurrentMap<>();
+
+    @Override
+    public Product get(int id) {
+        return products.get(id);
+    }
+
+    @Override
+    public boolean insert(Product p) {
+        return products.putIfAbsent(p.id, p) == null;
+    }
+
+    @Override
+    public int insertAll(List<Product> batch) {
+        int inserted = 0;
+        for (Product p : batch) {
+            if (products.putIfAbsent(p.id, p) == null) inserted++;
+        }
+        return inserted;
+    }
+
+    @Override
+    public Product update(int id, UnaryOperator<Product> change) {
+        return products.update(id, change);
+    }
+
+    @Override
+    public boolean remove(int id, Predicate<Product> matches) {
+        Product current = products.get(id);
+        return current != null && matches.test(current) && products.remove(id, current);
+    }
+
+    @Override
+    public void forEachId(IntConsumer action) {
+        products.forEach(p -> action.accept(p.id));
+    }
+
+    @Override
+    public int size() {
+        return products.size();
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Wraps the primary's store and appends every change that took effect to the ChangeLog, so every write path
+ * (create, update, delete, reserve, release, bulk import, shard export) reaches the replicas. A change and its
+ * append happen under one of STRIPES locks picked by id, so two changes to one product reach the log in the order
+ * they were made. Reads are not locked.
+ */
+class LoggedProductStore implements ProductStore {
+
+    private static final int STRIPES = 64;
+
+    private final ProductStore store;
+    private final ChangeLog log;
+    private final Object[] stripes = new Object[STRIPES];
+
+    LoggedProductStore(ProductStore store, ChangeLog log) {
+        this.store = store;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+    }
+
+    @Override
+    public Product get(int id) {
+        return store.get(id);
+    }
+
+    @Override
+    public boolean insert(Product p) {
+        synchronized (stripes[p.id & (STRIPES - 1)]) {
+            if (!store.insert(p)) return false;
+            log.append(p.id, p);
+            return true;
+        }
+    }
+
+    /**
+     * Inserts one product at a time so each insert is logged; a full store throws after the ones that fit, like
+     * the stores' own insertAll.
+     */
+    @Override
+    public int insertAll(List<Product> batch) {
+        int inserted = 0;
+        for (Product p : batch) {
+            if (insert(p)) inserted++;
+        }
+        return inserted;
+    }
+
+    @Override
+    public Product update(int id, UnaryOperator<Product> change) {
+        synchronized (stripes[id & (STRIPES - 1)]) {
+            Product updated = store.update(id, change);
+            if (updated != null) log.append(id, updated);
+            return updated;
+        }
+    }
+
+    @Override
+    public boolean remove(int id, Predicate<Product> matches) {
+        synchronized (stripes[id & (STRIPES - 1)]) {
+            if (!store.remove(id, matches)) return false;
+            log.append(id, null);
+            return true;
+        }
+    }
+
+    @Override
+    public void forEachId(IntConsumer action) {
+        store.forEachId(action);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Product store kept in two memory-mapped files instead of on the heap, so a large catalog adds nothing for the GC
+ * to trace and is simply there again after a restart, with nothing to replay.
+ *
+ * products.slots is a fixed size open addressing table (linear probing) with one 40 byte slot per product:
+ * [int state][int id][float price][int quantity][long nameOffset][int nameLength][long descOffset][int descLength]
+ * products.strings holds the UTF-8 names and descriptions, appended in 64MB mapped segments. Strings are only ever
+ * appended, so a reader holding an offset always finds the same bytes there. Space of replaced strings is not reused.
+ *
+ * Readers use an optimistic StampedLock read and only fall back to the read lock if a writer got in the way.
+ * Writers take the write lock and write the strings before the slot that points at them, and a new slot is only
+ * marked used once it is complete, so a killed process never leaves a half created product (an update cut off
+ * halfway may mix old and new fields). Data reaches the disk when the OS flushes it, or on shutdown.
+ */
+class MappedProductStore implements ProductStore {
+
+    private static final int MAGIC = 0x50534C54; // "PSLT"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64; // [int magic][int version][int capacity][int count][long stringsEnd]
+    private static final int SLOT = 40;
+    private static final int EMPTY = 0, USED = 1, DELETED = 2;
+    private static final int SEGMENT_BITS = 26;
+    private static final long SEGMENT = 1L << SEGMENT_BITS;
+
+    private final StampedLock lock = new StampedLock();
+    private final MappedByteBuffer slots;
+    private final int capacity;
+    private final int mask;
+    private final FileChannel stringChannel;
+    private volatile MappedByteBuffer[] segments;
+    private long stringsEnd; // Guarded by the write lock
+    private int count;       // Guarded by the write lock
+
+    /**
+     * Opens the store in dir, creating empty files on first use.
+     * @param dir Directory for products.slots and products.strings.
+     * @param requestedCapacity Maximum number of products for a new table, rounded up to a power of two. An existing
+     *                          table keeps the capacity it was created with.
+     * @throws IOException If the files cannot be opened or are not a product store.
+     */
+    MappedProductStore(Path dir, int requestedCapacity) throws IOException {
+        Files.createDirectories(dir);
+        Path slotFile = dir.resolve("products.slots");
+        boolean fresh = !Files.exists(slotFile) || Files.size(slotFile) == 0;
+
+        if (requestedCapacity > 1 << 25) throw new IOException("Product store capacity is limited to " + (1 << 25));
+        int cap = fresh ? Integer.highestOneBit(Math.max(requestedCapacity, 16) * 2 - 1) : 0;
+        try (FileChannel ch = FileChannel.open(slotFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (!fresh) {
+                MappedByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+                if (head.getInt(0) != MAGIC || head.getInt(4) != VERSION) {
+                    throw new IOException("Not a product store: " + slotFile);
+                }
+                cap = head.getInt(8);
+            }
+            slots = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) cap * SLOT);
+        }
+        capacity = cap;
+        mask = cap - 1;
+        if (fresh) {
+            slots.putInt(0, MAGIC);
+            slots.putInt(4, VERSION);
+            slots.putInt(8, capacity);
+        }
+        count = slots.getInt(12);
+        stringsEnd = slots.getLong(16);
+
+        stringChannel = FileChannel.open(dir.resolve("products.strings"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int used = (int) ((stringsEnd + SEGMENT - 1) >>> SEGMENT_BITS);
+        MappedByteBuffer[] segs = new MappedByteBuffer[Math.max(used, 1)];
+        for (int i = 0; i < segs.length; i++) segs[i] = mapSegment(i);
+        segments = segs;
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    @Override
+    public Product get(int id) {
+        long stamp = lock.tryOptimisticRead();
+        Product p;
+        try {
+            p = read(id);
+        } catch (RuntimeException e) { // Saw a half written slot, the validate below fails anyway
+            p = null;
+            stamp = 0;
+        }
+        if (stamp != 0 && lock.validate(stamp)) return p;
+
+        stamp = lock.readLock();
+        try {
+            return read(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean insert(Product p) {
+        long stamp = lock.writeLock();
+        try {
+            return insertLocked(p);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int insertAll(List<Product> batch) {
+        long stamp = lock.writeLock(); // Once for the whole batch
+        try {
+            int inserted = 0;
+            for (Product p : batch) {
+                if (insertLocked(p)) inserted++;
+            }
+            return inserted;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Caller holds the write lock
+    private boolean insertLocked(Product p) {
+        int free = -1;
+        for (int i = 0, s = hash(p.id); i < capacity; i++, s = (s + 1) & mask) {
+            int state = state(s);
+            if (state == USED && slots.getInt(offset(s) + 4) == p.id) return false;
+            if (state == DELETED && free < 0) free = s;
+            if (state == EMPTY) {
+                if (free < 0) free = s;
+                break;
+            }
+        }
+        if (free < 0 || count >= capacity - capacity / 4) {
+            throw new IllegalStateException("Product store is full (capacity " + capacity + ")");
+        }
+        writeSlot(free, p, null);
+        count++;
+        slots.putInt(12, count);
+        return true;
+    }
+
+    @Override
+    public Product update(int id, UnaryOperator<Product> change) {
+        long stamp = lock.writeLock();
+        try {
+            int s = find(id);
+            if (s < 0) return null;
+            Product current = readSlot(s);
+            Product next = change.apply(current);
+            if (next != null) writeSlot(s, next, current);
+            return next;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(int id, Predicate<Product> matches) {
+        long stamp = lock.writeLock();
+        try {
+            int s = find(id);
+            if (s < 0 || !matches.test(readSlot(s))) return false;
+            slots.putInt(offset(s), DELETED);
+            count--;
+            slots.putInt(12, count);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void forEachId(IntConsumer action) {
+        long stamp = lock.readLock();
+        try {
+            for (int s = 0; s < capacity; s++) {
+                if (state(s) == USED) action.accept(slots.getInt(offset(s) + 4));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return slots.getInt(12);
+    }
+
+    /**
+     * Writes all changes to disk.
+     */
+    void flush() {
+        slots.force();
+        for (MappedByteBuffer seg : segments) seg.force();
+    }
+
+    private Product read(int id) {
+        int s = find(id);
+        return s < 0 ? null : readSlot(s);
+    }
+
+    private int find(int id) {
+        for (int i = 0, s = hash(id); i < capacity; i++, s = (s + 1) & mask) {
+            int state = state(s);
+            if (state == EMPTY) return -1;
+            if (state == USED && slots.getInt(offset(s) + 4) == id) return s;
+        }
+        return -1;
+    }
+
+    private Product readSlot(int s) {
+        int o = offset(s);
+        return new Product(slots.getInt(o + 4),
+                readString(slots.getLong(o + 16), slots.getInt(o + 24)),
+                readString(slots.getLong(o + 28), slots.getInt(o + 36)),
+                slots.getFloat(o + 8), slots.getInt(o + 12));
+    }
+
+    // Strings that did not change keep their old offsets, so a reserve appends nothing to products.strings
+    private void writeSlot(int s, Product p, Product previous) {
+        int o = offset(s);
+        if (previous == null || !previous.name.equals(p.name)) {
+            byte[] b = p.name.getBytes(StandardCharsets.UTF_8);
+            slots.putLong(o + 16, appendString(b));
+            slots.putInt(o + 24, b.length);
+        }
+        if (previous == null || !previous.description.equals(p.description)) {
+            byte[] b = p.description.getBytes(StandardCharsets.UTF_8);
+            slots.putLong(o + 28, appendString(b));
+            slots.putInt(o + 36, b.length);
+        }
+        slots.putInt(o + 4, p.id);
+        slots.putFloat(o + 8, p.price);
+        slots.putInt(o + 12, p.quantity);
+        slots.putInt(o, USED);
+    }
+
+    private String readString(long off, int len) {
+        if (len < 0 || len > SEGMENT) throw new IllegalStateException("Bad string length");
+        byte[] b = new byte[len];
+        segments[(int) (off >>> SEGMENT_BITS)].get((int) (off & (SEGMENT - 1)), b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private long appendString(byte[] b) {
+        if (b.length > SEGMENT) throw new IllegalStateException("String too long");
+        long off = stringsEnd;
+        if ((off & (SEGMENT - 1)) + b.length > SEGMENT) off = (off | (SEGMENT - 1)) + 1; // Never split a string
+        int seg = (int) (off >>> SEGMENT_BITS);
+        if (seg >= segments.length) {
+            MappedByteBuffer[] grown = java.util.Arrays.copyOf(segments, seg + 1);
+            for (int i = segments.length; i <= seg; i++) grown[i] = mapSegment(i);
+            segments = grown;
+        }
+        segments[seg].put((int) (off & (SEGMENT - 1)), b);
+        stringsEnd = off + b.length;
+        slots.putLong(16, stringsEnd);
+        return off;
+    }
+
+    private MappedByteBuffer mapSegment(int i) {
+        try {
+            return stringChannel.map(FileChannel.MapMode.READ_WRITE, i * SEGMENT, SEGMENT);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map product strings", e);
+        }
+    }
+
+    private int state(int s) {
+        return slots.getInt(offset(s));
+    }
+
+    private static int offset(int s) {
+        return HEADER + s * SLOT;
+    }
+
+    private int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,37 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One catalog entry. Products are never changed in place: an update stores a new Product, so a reader always sees
+ * a consistent set of fields and the encoded GET response next to them.
+ */
+class Product {
+    final int id;
+    final String name;
+    final String description;
+    final float price;
+    final int quantity;
+    final byte[] json; // Encoded GET response
+
+    Product(int id, String name, String description, float price, int quantity) {
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.price = price;
+        this.quantity = quantity;
+
+        StringBuilder sb = new StringBuilder(160).append("{\"id\":").append(id).append(",\"name\":");
+        JsonWriter.appendString(sb, name).append(",\"description\":");
+        JsonWriter.appendString(sb, description)
+                .append(",\"price\":").append(price)
+                .append(",\"quantity\":").append(quantity).append('}');
+        this.json = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param newQuantity The stock after a reserve or update.
+     * @return A copy with only the quantity changed.
+     */
+    Product withQuantity(int newQuantity) {
+        return new Product(id, name, description, price, newQuantity);
+    }
+}
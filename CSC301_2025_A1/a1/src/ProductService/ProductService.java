@@ -5,28 +5,20 @@ import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
 
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.Executors;
-
-
-class Product {
-    int id;
-    String name;
-    String description;
-    float price;
-    int quantity;
-
-    Product(int id, String name, String description, float price, int quantity) {
-        this.id = id;
-        this.name = name;
-        this.description = description;
-        this.price = price;
-        this.quantity = quantity;
-    }
-}
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * The ProductService microservice is responsible for managing the product catalog.
@@ -34,22 +26,29 @@ class Product {
  */
 public class ProductService {
 
-    static Map<Integer, Product> products = new HashMap<>();
+    static ProductStore products = new HeapProductStore();
+    static final int BULK_BATCH = 1000; // Products handed to the store at once by /product/bulk
+    static ReplicaFollower replica;      // Set when running as a read replica
+    static HandoffStore handoff;         // Outermost store of a primary, holds products moving to another shard
+    static int maxReplicaLagMs;
+    static String configPath;            // Read again by handleExport, for the shards added since startup
 
     /**
      * Starts the ProductService.
-     * @param args Command line arguments, expects exactly one path to config.json.
+     * @param args Command line arguments: the path to config.json, optionally followed by a port that overrides the
+     *             configured one, to run several shards from one config, and then by the "host:port" of a primary
+     *             to run as a read replica of it.
      * @throws Exception If server creation or configuration reading fails.
      */
     public static void main(String[] args) throws Exception {
         System.out.println("ProductService starting...");
 
-        if (args.length != 1) { // Not hardcode port
-            System.err.println("Usage: java ProductService config.json");
+        if (args.length < 1 || args.length > 3) { // Not hardcode port
+            System.err.println("Usage: java ProductService config.json [port [primary host:port]]");
             return;
         }
 
-        String configPath = args[0];
+        configPath = args[0];
 
         StringBuilder sb = new StringBuilder();
         try (BufferedReader br = new BufferedReader(new FileReader(configPath))) {
@@ -60,24 +59,118 @@ public class ProductService {
         }
         String config = sb.toString();
 
-        int port = extractPort(config, "ProductService");
+        int port;
+        try {
+            port = args.length >= 2 ? Integer.parseInt(args[1]) : extractPort(config, "ProductService");
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
 
         if (port <= 0) {
             System.err.println("Invalid port in config.json");
             return;
         }
 
+        String productConfig = Config.section(config, "ProductService");
+        if (args.length < 3 && "mapped".equals(Config.getString(productConfig, "storage", "heap"))) {
+            String dataDir = Config.getString(productConfig, "dataDir", "product-data");
+            if (args.length == 2) dataDir += "-" + port; // Each shard on this machine keeps its own files
+            products = new MappedProductStore(Paths.get(dataDir), Config.getInt(productConfig, "capacity", 1 << 20));
+            System.out.println("Loaded " + products.size() + " products from the mapped store");
+        }
+
         // Creation
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.setExecutor(Executors.newFixedThreadPool(20));
+        server.setExecutor(ServerExecutors.create(productConfig));
+
+        Metrics.instrument(server.createContext("/product", new ProductHandler()));
+        Metrics.instrument(server.createContext("/product/", new ProductHandler()));
+        Metrics.serve(server, productConfig);
+        Metrics.gauge("products", "Products stored.", () -> products.size());
+
+        if (args.length == 3) { // Read replica, its products come from the primary (in memory only)
+            replica = new ReplicaFollower(args[2], products);
+            maxReplicaLagMs = Config.getInt(productConfig, "maxReplicaLagMs", 1000);
+            Thread follower = new Thread(replica, "replica-follower");
+            follower.setDaemon(true);
+            follower.start();
+            Metrics.gauge("replication_lag_ms", "How far the data is behind the primary, -1 while loading.",
+                    replica::lagMillis);
+            Metrics.gauge("replication_applied_seq", "Seq of the last change applied from the primary.",
+                    replica::appliedSeq);
+            System.out.println("Read replica of " + args[2]);
+        } else if (Config.getBoolean(productConfig, "replication", false)) {
+            ChangeLog changes = new ChangeLog(Config.getInt(productConfig, "changeLogSize", 1 << 16));
+            products = new LoggedProductStore(products, changes);
+            // Not instrumented, a replica's stream would count as in flight for as long as it is connected
+            server.createContext("/replication/changes", exchange -> {
+                Thread stream = new Thread(() -> changes.stream(exchange, products), "replication-stream");
+                stream.setDaemon(true);
+                stream.start();
+            });
+            Metrics.gauge("replication_seq", "Seq of the latest change sent to replicas.", changes::lastSeq);
+            Metrics.gauge("replication_followers", "Replicas streaming changes.", changes::followers);
+        }
 
-        server.createContext("/product", new ProductHandler());
-        server.createContext("/product/", new ProductHandler());
+        List<String> hotProducts = Config.getList(productConfig, "hotProducts");
+        if (replica == null && !hotProducts.isEmpty()) { // A replica's stock only changes through the follower
+            Set<Integer> hotIds = new HashSet<>();
+            for (String id : hotProducts) hotIds.add(Integer.parseInt(id.trim()));
+            products = new StripedStockStore(products, hotIds,
+                    Config.getInt(productConfig, "stockStripes", Runtime.getRuntime().availableProcessors()),
+                    Config.getInt(productConfig, "stockFlushMs", 100));
+            System.out.println("Striping the stock of products " + hotIds);
+        }
+        if (replica == null) products = handoff = new HandoffStore(products);
+        BinaryServer.start(productConfig, port, ProductService::binary);
 
         server.start();
         System.out.println("ProductService listening on port " + port);
     }
 
+    /**
+     * Answers a request from the binary transport with what the same HTTP call would get. GET_PRODUCT is a GET of
+     * the product. ADJUST_STOCK with a negative arg is a "reserve" of -arg (200, 404 or 409), with a positive one a
+     * "release" of arg (200, 404, or 400 if it would take the stock past Integer.MAX_VALUE). A read replica answers
+     * GET_PRODUCT with 503 while it is too far behind, and ADJUST_STOCK with 405.
+     * @param type GET_PRODUCT or ADJUST_STOCK.
+     * @param id The product id.
+     * @param arg The stock change for ADJUST_STOCK.
+     * @return The status and body.
+     */
+    static BinaryServer.Reply binary(byte type, int id, int arg) {
+        if (type == BinaryServer.GET_PRODUCT) {
+            if (replica != null && (replica.lagMillis() < 0 || replica.lagMillis() > maxReplicaLagMs)) {
+                return new BinaryServer.Reply(503);
+            }
+            Product p = products.get(id);
+            return p == null ? new BinaryServer.Reply(404) : new BinaryServer.Reply(200, p.json);
+        }
+        if (type != BinaryServer.ADJUST_STOCK || arg == 0 || arg == Integer.MIN_VALUE) return new BinaryServer.Reply(400);
+        if (replica != null) return new BinaryServer.Reply(405);
+
+        Product changed = arg < 0 ? products.reserve(id, -arg) : release(id, arg);
+        if (changed != null) return new BinaryServer.Reply(200, changed.json);
+        if (products.get(id) == null) return new BinaryServer.Reply(404);
+        return new BinaryServer.Reply(arg < 0 ? 409 : 400);
+    }
+
+    /**
+     * Gives stock back to a product, as one step.
+     * @param id The product id.
+     * @param qty The quantity to give back, positive.
+     * @return The product after the release, or null if it does not exist or its quantity would overflow.
+     */
+    static Product release(int id, int qty) {
+        return products.update(id, p -> {
+            try {
+                return p.withQuantity(Math.addExact(p.quantity, qty));
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        });
+    }
+
     /**
      * Extracts port number of specified service from provided config.json manually.
      * @param json The raw JSON file converted to a string.
@@ -114,11 +207,27 @@ public class ProductService {
             String method = exchange.getRequestMethod();
             String path = exchange.getRequestURI().getPath();
 
+            if (replica != null && !method.equals("GET")) { // Writes only go to the primary
+                exchange.sendResponseHeaders(405, 0);
+                exchange.close();
+                return;
+            }
+
             if (method.equals("POST") && path.equals("/product")) {
                 handlePost(exchange);
                 return;
             }
 
+            if (method.equals("POST") && path.equals("/product/bulk")) {
+                handleBulk(exchange);
+                return;
+            }
+
+            if (method.equals("POST") && path.equals("/product/export")) {
+                handleExport(exchange);
+                return;
+            }
+
             if (method.equals("GET") && path.startsWith("/product/")) {
                 handleGet(exchange);
                 return;
@@ -136,10 +245,16 @@ public class ProductService {
          */
         private void handlePost(HttpExchange exchange) throws IOException {
 
-            Map<String, String> productData = getRequestData(exchange);
+            JsonFields productData = getRequestData(exchange);
             String command = productData.get("command");
+            Metrics.tagCommand(exchange, command);
             String s_id = productData.get("id");
 
+            if ("reserve batch".equals(command)) { // Batch command, has "items" instead of "id"
+                handleReserveBatch(exchange, productData);
+                return;
+            }
+
             if (command == null || s_id == null) {
                 // Required fields missing, send appropriate output
                 exchange.sendResponseHeaders(400, 0);
@@ -167,6 +282,12 @@ public class ProductService {
                 case "delete":
                     handleDelete(exchange, productData, id);
                     break;
+                case "reserve":
+                    handleReserve(exchange, productData, id);
+                    break;
+                case "release":
+                    handleRelease(exchange, productData, id);
+                    break;
                 default:
                     // not sure what should go here
                     exchange.sendResponseHeaders(400, 0);
@@ -177,9 +298,18 @@ public class ProductService {
         }
 
         /**
-         * Retrieves product information. Returns 404 if the ID does not exist.
+         * Retrieves product information. Returns 404 if the ID does not exist. A read replica answers 503 instead
+         * while its data is more than maxReplicaLagMs behind the primary, so the caller reads from the primary.
          */
         private void handleGet(HttpExchange exchange) throws IOException {
+            if (replica != null) {
+                long lag = replica.lagMillis();
+                if (lag < 0 || lag > maxReplicaLagMs) {
+                    exchange.sendResponseHeaders(503, 0);
+                    exchange.close();
+                    return;
+                }
+            }
 
             String path = exchange.getRequestURI().getPath();
             String suffix = path.substring("/product/".length());
@@ -193,79 +323,208 @@ public class ProductService {
                 return;
             }
 
+            long t = System.nanoTime();
             Product p = products.get(id);
+            Trace.of(exchange).add(Trace.STORAGE, t);
             if (p == null) {
                 exchange.sendResponseHeaders(404, 0);
                 exchange.close();
                 return;
             }
 
-            String json = "{\"id\":" + p.id
-                    + ",\"name\":\"" + p.name + "\""
-                    + ",\"description\":\"" + p.description + "\""
-                    + ",\"price\":" + p.price
-                    + ",\"quantity\":" + p.quantity
-                    + "}";
-            sendResponse(exchange, json);
+            sendResponse(exchange, p.json);
 
 
         }
 
-        private static Map<String, String> getRequestData(HttpExchange exchange) throws IOException {
-            Map<String, String> data = new HashMap<>();
-
-            // Read the stream into a String first
-            StringBuilder sb = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) sb.append(line);
-            }
-
-            String body = sb.toString().trim();
-            if (body.length() < 2 || !body.startsWith("{") || !body.endsWith("}")) {
-                return data;
-            }
-
-            // Manual parsing: strip braces and split into pairs
-            String content = body.substring(1, body.length() - 1);
-            String[] pairs = content.split(",");
-
-            if (content.trim().isEmpty()) return data;
-
-            for (String pair : pairs) {
-                String[] parts = pair.split(":", 2); // Split only on the first colon
-                if (parts.length == 2) {
-                    String key = parts[0].trim().replace("\"", "");
-                    String value = parts[1].trim().replace("\"", "");
-                    data.put(key, value);
-                }
-            }
+        /**
+         * Parses the request body with the shared tokenizer. A malformed body gives no fields, so it ends up as a 400.
+         * @param exchange The HttpExchange for the current request.
+         * @return This thread's reusable field holder.
+         * @throws IOException If reading the body fails.
+         */
+        private static JsonFields getRequestData(HttpExchange exchange) throws IOException {
+            long t = System.nanoTime();
+            JsonFields data = JsonFields.forThread();
+            JsonReader.read(exchange.getRequestBody(), data);
+            Trace.of(exchange).add(Trace.PARSE, t);
             return data;
-
         }
 
         private static void sendResponse(HttpExchange exchange, String response) throws IOException {
 
             // Turns response string into bytes, and then send header show it works, next make a stream
             // Use the stream we write back the bytes.
-            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            sendResponse(exchange, response.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends already encoded JSON, e.g. the bytes cached on a Product, so a GET does no serialization at all.
+         */
+        private static void sendResponse(HttpExchange exchange, byte[] bytes) throws IOException {
+            long t = System.nanoTime();
             exchange.getResponseHeaders().set("Content-Type", "application/json");
             exchange.sendResponseHeaders(200, bytes.length);
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(bytes);
+                Trace.of(exchange).add(Trace.SERIALIZE, t); // Closing the stream finishes the trace
             }
             exchange.close();
         }
+        /**
+         * Bulk import: the body is newline delimited JSON with one product per line, in the same shape as a create
+         * ({"id", "name", "description", "price", "quantity"}). Lines are parsed as they arrive and inserted
+         * BULK_BATCH at a time. Answers 200 with {"created","duplicate","invalid"} counts at the end, where duplicate
+         * and invalid are the lines a single create would have answered with 409 and 400, or 507 if the store fills up.
+         * @param exchange The HttpExchange for the current request.
+         * @throws IOException If the request fails.
+         */
+        private static void handleBulk(HttpExchange exchange) throws IOException {
+            long[] counts = new long[3]; // created, duplicate, invalid
+            List<Product> batch = new ArrayList<>(BULK_BATCH);
+            try {
+                JsonReader.readLines(exchange.getRequestBody(), new JsonFields(), line -> {
+                    Product p = bulkProduct(line);
+                    if (p == null) {
+                        counts[2]++;
+                        return;
+                    }
+                    batch.add(p);
+                    if (batch.size() == BULK_BATCH) insertBatch(batch, counts);
+                });
+                insertBatch(batch, counts);
+            } catch (IllegalStateException e) { // Mapped store is full
+                exchange.sendResponseHeaders(507, 0);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, "{\"created\":" + counts[0] + ",\"duplicate\":" + counts[1]
+                    + ",\"invalid\":" + counts[2] + "}");
+        }
+
+        /**
+         * Checks one bulk line like handleCreate does.
+         * @return The new product, or null if the line is invalid.
+         */
+        private static Product bulkProduct(JsonFields data) {
+            String name = data.get("name");
+            String description = data.get("description");
+            String sPrice = data.get("price");
+            String sQty = data.get("quantity");
+            if (name == null || name.trim().isEmpty() ||
+                    description == null || description.trim().isEmpty() ||
+                    sPrice == null || sPrice.trim().isEmpty() ||
+                    sQty == null || sQty.trim().isEmpty()) {
+                return null;
+            }
+            try {
+                return new Product(Integer.parseInt(data.get("id")), name, description,
+                        Float.parseFloat(sPrice), Integer.parseInt(sQty));
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        /**
+         * Moves the products a new shard owns over to it, called by the OrderService when a shard is added. The body
+         * is {"target":"host:port","shards":[...]} with the whole shard list after the addition. Every product that
+         * the target owns on that ring is taken out of the store and posted to the target's /product/bulk,
+         * BULK_BATCH at a time. While its batch is in flight a product is still read here and changes to it wait
+         * (see HandoffStore), so callers find it here until the target has it and there afterwards. The target and
+         * every shard listed must be in the "shards" list of config.json as it is now, so a caller cannot send the
+         * products anywhere else. Answers 200 with {"moved":N}, 400 for a bad body, 403 for a shard that is not in
+         * config.json, or 502 if the target does not take a batch, which is then put back.
+         * @param exchange The HttpExchange for the current request.
+         * @throws IOException If the request fails.
+         */
+        private static void handleExport(HttpExchange exchange) throws IOException {
+            String body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            JsonFields data = new JsonFields();
+            String target = JsonReader.parse(body, data) ? data.get("target") : null;
+            List<String> shards = data.get("shards") != null ? JsonReader.readStringArray(data.get("shards")) : null;
+            if (target == null || shards == null || !shards.contains(target)) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+            List<String> configured = Config.getList(Config.section(Files.readString(Paths.get(configPath)),
+                    "ProductService"), "shards");
+            if (!configured.containsAll(shards)) {
+                exchange.sendResponseHeaders(403, 0);
+                exchange.close();
+                return;
+            }
+
+            ShardRing ring = new ShardRing(shards);
+            int[][] ids = {new int[1024]};
+            int[] n = {0};
+            products.forEachId(id -> {
+                if (!ring.owner(id).equals(target)) return;
+                if (n[0] == ids[0].length) ids[0] = Arrays.copyOf(ids[0], n[0] * 2);
+                ids[0][n[0]++] = id;
+            });
+
+            HttpClient client = HttpClient.newHttpClient();
+            long moved = 0;
+            List<Product> batch = new ArrayList<>(BULK_BATCH);
+            for (int i = 0; i < n[0]; i += BULK_BATCH) {
+                ByteArrayOutputStream ndjson = new ByteArrayOutputStream(BULK_BATCH * 128);
+                for (int j = i; j < Math.min(n[0], i + BULK_BATCH); j++) {
+                    Product taken = handoff.take(ids[0][j]);
+                    if (taken != null) {
+                        batch.add(taken);
+                        ndjson.write(taken.json);
+                        ndjson.write('\n');
+                    }
+                }
+                if (batch.isEmpty()) continue;
+                boolean landed = sendBulk(client, target, ndjson.toByteArray());
+                handoff.landed(batch, landed);
+                if (!landed) {
+                    exchange.sendResponseHeaders(502, 0);
+                    exchange.close();
+                    return;
+                }
+                moved += batch.size();
+                batch.clear();
+            }
+            sendResponse(exchange, "{\"moved\":" + moved + "}");
+        }
+
+        private static boolean sendBulk(HttpClient client, String target, byte[] ndjson) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + target + "/product/bulk"))
+                    .timeout(Duration.ofSeconds(60))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(ndjson))
+                    .build();
+            try {
+                return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            } catch (IOException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private static void insertBatch(List<Product> batch, long[] counts) {
+            int inserted = products.insertAll(batch);
+            counts[0] += inserted;
+            counts[1] += batch.size() - inserted;
+            batch.clear();
+        }
+
         /**
          * Validates and creates a new product in the system.
          * Returns 200 on success, 400 for missing fields, or 409 if the ID already exists.
          * @param exchange The HttpExchange object representing the request/response.
-         * @param data A map containing the parsed JSON request body.
+         * @param data The parsed JSON request body.
          * @param id The unique identifier for the product to be created.
          * @throws IOException If response transmission fails.
          */
-        private static void handleCreate(HttpExchange exchange, Map<String, String> data, int id) throws IOException {
+        private static void handleCreate(HttpExchange exchange, JsonFields data, int id) throws IOException {
 
             String name = data.get("name");
             String description = data.get("description");
@@ -301,15 +560,23 @@ public class ProductService {
             }
 
             Product newProduct = new Product(id, name, description, priceVal, qtyVal);
-            products.put(id, newProduct);
-            
-            String json = "{\"id\":" + newProduct.id
-                    + ",\"name\":\"" + newProduct.name + "\""
-                    + ",\"description\":\"" + newProduct.description + "\""
-                    + ",\"price\":" + newProduct.price
-                    + ",\"quantity\":" + newProduct.quantity
-                    + "}";
-            sendResponse(exchange, json);
+            boolean created;
+            long t = System.nanoTime();
+            try {
+                created = products.insert(newProduct);
+                Trace.of(exchange).add(Trace.STORAGE, t);
+            } catch (IllegalStateException e) { // Mapped store is full
+                exchange.sendResponseHeaders(507, 0);
+                exchange.close();
+                return;
+            }
+            if (!created) { // Lost a race with another create
+                exchange.sendResponseHeaders(409, 0);
+                exchange.close();
+                return;
+            }
+
+            sendResponse(exchange, newProduct.json);
 
 
         }
@@ -317,11 +584,11 @@ public class ProductService {
         /**
          * Updates existing product fields. If a field is missing, the existing value is unchanged.
          * @param exchange The HTTP exchange object.
-         * @param data Map of fields to update.
+         * @param data Parsed fields to update.
          * @param id The product ID.
          * @throws IOException If the request fails.
          */
-        private static void handleUpdate(HttpExchange exchange, Map<String, String> data, int id) throws IOException {
+        private static void handleUpdate(HttpExchange exchange, JsonFields data, int id) throws IOException {
             Product existingProduct = products.get(id);
 
             if (existingProduct == null) { // Return error user DNE (Not found)
@@ -330,46 +597,181 @@ public class ProductService {
                 return;
             }
 
-            if (data.containsKey("name")) {
-                String v = data.get("name");
-                if (v == null || v.trim().isEmpty()) { exchange.sendResponseHeaders(400, 0); exchange.close(); return; }
-                existingProduct.name = v;
-            }
-            if (data.containsKey("description")) {
-                String v = data.get("description");
-                if (v == null || v.trim().isEmpty()) { exchange.sendResponseHeaders(400, 0); exchange.close(); return; }
-                existingProduct.description = v;
-            }
-            if (data.containsKey("price")) {
-                String v = data.get("price");
-                if (v == null || v.trim().isEmpty()) { exchange.sendResponseHeaders(400, 0); exchange.close(); return; }
-                try { existingProduct.price = Float.parseFloat(v); }
-                catch (Exception e) { exchange.sendResponseHeaders(400,0); exchange.close(); return; }
-            }
-            if (data.containsKey("quantity")) {
-                String v = data.get("quantity");
-                if (v == null || v.trim().isEmpty()) { exchange.sendResponseHeaders(400, 0); exchange.close(); return; }
-                try { existingProduct.quantity = Integer.parseInt(v); }
-                catch (Exception e) { exchange.sendResponseHeaders(400,0); exchange.close(); return; }
-            }
-            String json = "{\"id\":" + existingProduct.id
-                    + ",\"name\":\"" + existingProduct.name + "\""
-                    + ",\"description\":\"" + existingProduct.description + "\""
-                    + ",\"price\":" + existingProduct.price
-                    + ",\"quantity\":" + existingProduct.quantity
-                    + "}";
-            sendResponse(exchange, json);
+            // Validate everything first, so a bad field leaves the product untouched
+            String name = data.get("name");
+            String description = data.get("description");
+            String sPrice = data.get("price");
+            String sQty = data.get("quantity");
+            if ((data.has("name") && (name == null || name.trim().isEmpty())) ||
+                    (data.has("description") && (description == null || description.trim().isEmpty())) ||
+                    (data.has("price") && (sPrice == null || sPrice.trim().isEmpty())) ||
+                    (data.has("quantity") && (sQty == null || sQty.trim().isEmpty()))) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+
+            float priceVal = 0;
+            int qtyVal = 0;
+            try {
+                if (sPrice != null) priceVal = Float.parseFloat(sPrice);
+                if (sQty != null) qtyVal = Integer.parseInt(sQty);
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+
+            float newPrice = priceVal;
+            int newQty = qtyVal;
+            long t = System.nanoTime();
+            Product updated = products.update(id, p -> new Product(id, // Atomic, so a concurrent reserve is never lost
+                    name != null ? name : p.name,
+                    description != null ? description : p.description,
+                    sPrice != null ? newPrice : p.price,
+                    sQty != null ? newQty : p.quantity));
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (updated == null) { // Deleted meanwhile
+                exchange.sendResponseHeaders(404, 0);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, updated.json);
             
         }
 
+        /**
+         * Atomically checks and decrements the stock of a product, so the OrderService only needs one call per order.
+         * Returns 200 with the updated product, 400 for a missing or non-positive quantity, 404 if the product does
+         * not exist, or 409 if there is not enough stock.
+         * @param exchange The HttpExchange for the current request.
+         * @param data Parsed request body containing the quantity to reserve.
+         * @param id The ID of the product to reserve stock from.
+         * @throws IOException If the request fails.
+         */
+        private static void handleReserve(HttpExchange exchange, JsonFields data, int id) throws IOException {
+            String sQty = data.get("quantity");
+
+            int qty;
+            try {
+                qty = Integer.parseInt(sQty.trim());
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+
+            if (qty <= 0) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+
+            long t = System.nanoTime();
+            Product existingProduct = products.get(id);
+            if (existingProduct == null) {
+                exchange.sendResponseHeaders(404, 0);
+                exchange.close();
+                return;
+            }
+
+            // Check and decrement happen as one step inside the store
+            Product reserved = products.reserve(id, qty);
+            Trace.of(exchange).add(Trace.STORAGE, t);
+
+            if (reserved == null) { // Not enough stock left, or deleted or moved to another shard meanwhile
+                exchange.sendResponseHeaders(products.get(id) != null ? 409 : 404, 0);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, reserved.json);
+        }
+
+        /**
+         * Gives back stock taken by a reserve, used by the OrderService when an order is cancelled. Returns 200 with
+         * the updated product, 400 for a missing or non-positive quantity or one that would take the stock past
+         * Integer.MAX_VALUE, or 404 if the product no longer exists.
+         * @param exchange The HttpExchange for the current request.
+         * @param data Parsed request body containing the quantity to release.
+         * @param id The ID of the product to release stock to.
+         * @throws IOException If the request fails.
+         */
+        private static void handleRelease(HttpExchange exchange, JsonFields data, int id) throws IOException {
+            int qty;
+            try {
+                qty = Integer.parseInt(data.get("quantity").trim());
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+
+            long t = System.nanoTime();
+            Product released = qty <= 0 ? null : release(id, qty);
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (released == null) { // A release past the largest quantity is refused like a bad quantity
+                exchange.sendResponseHeaders(qty <= 0 || products.get(id) != null ? 400 : 404, 0);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, released.json);
+        }
+
+        /**
+         * Reserves stock for many items in one call, used by the OrderService for batch orders. Items are handled in
+         * order, each one atomically like a single reserve, so two items for the same product draw from the same
+         * stock. Returns 200 with {"results":[...]} holding the status code each item would have got from "reserve",
+         * or 400 if "items" is not an array of objects.
+         * @param exchange The HttpExchange for the current request.
+         * @param data Parsed request body containing the items, each with an id and a quantity.
+         * @throws IOException If the request fails.
+         */
+        private static void handleReserveBatch(HttpExchange exchange, JsonFields data) throws IOException {
+            String sItems = data.get("items");
+            StringBuilder sb = new StringBuilder(64).append("{\"results\":[");
+            boolean[] first = {true};
+            long t = System.nanoTime();
+            boolean ok = sItems != null && JsonReader.forEachObject(sItems, new JsonFields(), item -> {
+                if (!first[0]) sb.append(',');
+                sb.append(reserve(item.get("id"), item.get("quantity")));
+                first[0] = false;
+            });
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (!ok) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, sb.append("]}").toString());
+        }
+
+        /**
+         * One item of a batch reserve.
+         * @return The status code a single "reserve" of this item would answer with.
+         */
+        private static int reserve(String sId, String sQty) {
+            int id;
+            int qty;
+            try {
+                id = Integer.parseInt(sId.trim());
+                qty = Integer.parseInt(sQty.trim());
+            } catch (Exception e) {
+                return 400;
+            }
+            if (qty <= 0) return 400;
+            if (products.get(id) == null) return 404;
+            if (products.reserve(id, qty) != null) return 200;
+            return products.get(id) != null ? 409 : 404;
+        }
+
         /**
          * Removes a product from the database if all provided fields match the record.
          * @param exchange The HttpExchange for the current request.
-         * @param data Map containing product details for verification.
+         * @param data Parsed request body with the product details for verification.
          * @param id The ID of the product to delete.
          * @throws IOException If the request fails.
          */
-        private static void handleDelete(HttpExchange exchange, Map<String, String> data, int id) throws IOException {
+        private static void handleDelete(HttpExchange exchange, JsonFields data, int id) throws IOException {
             Product existingProduct = products.get(id);
 
             if (existingProduct == null) { // Return error, product DNE (Not found)
@@ -403,16 +805,23 @@ public class ProductService {
                 return;
             }
 
-            if (name.equals(existingProduct.name) &&
-                    description.equals(existingProduct.description) &&
-                    Float.compare(existingProduct.price, priceVal) == 0 &&
-                    existingProduct.quantity == qtyVal) {
+            long t = System.nanoTime();
+            boolean removed = products.remove(id, p -> name.equals(p.name) &&
+                    description.equals(p.description) &&
+                    Float.compare(p.price, priceVal) == 0 &&
+                    p.quantity == qtyVal);
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (removed) {
 
-                products.remove(id);
                 exchange.sendResponseHeaders(200, 0);
                 exchange.close();
                 return;
             }
+            if (products.get(id) == null) { // Deleted or moved to another shard meanwhile
+                exchange.sendResponseHeaders(404, 0);
+                exchange.close();
+                return;
+            }
 
             // Mismatch
             sendResponse(exchange, "{}");
@@ -0,0 +1,69 @@
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Storage behind the ProductService handlers. Every method is atomic for its id, so handlers never lock anything
+ * themselves. Selected with "storage" in the ProductService config section: "heap" (default) or "mapped",
+ * wrapped by StripedStockStore when there are "hotProducts" and, on a primary, by HandoffStore.
+ */
+interface ProductStore {
+
+    /**
+     * @param id The product id.
+     * @return The product, or null if there is none.
+     */
+    Product get(int id);
+
+    /**
+     * Adds a product unless its id is taken.
+     * @param p The new product.
+     * @return False if a product with that id already exists.
+     * @throws IllegalStateException If the store has no room left.
+     */
+    boolean insert(Product p);
+
+    /**
+     * Adds many products at once, e.g. for a bulk import, skipping ids that are taken.
+     * @param batch The new products, inserted in order.
+     * @return How many were inserted; the rest were duplicates.
+     * @throws IllegalStateException If the store fills up, after inserting the products that fit.
+     */
+    int insertAll(List<Product> batch);
+
+    /**
+     * Replaces a product with a changed copy.
+     * @param id The product id.
+     * @param change Gets the current product and returns its replacement, or null to leave it as is.
+     * @return The stored replacement, or null if the product does not exist or change returned null.
+     */
+    Product update(int id, UnaryOperator<Product> change);
+
+    /**
+     * Takes stock from a product if it has enough, as one step.
+     * @param id The product id.
+     * @param qty The quantity to take, positive.
+     * @return The product after the reserve, or null if it does not exist or has less than qty left.
+     */
+    default Product reserve(int id, int qty) {
+        return update(id, p -> p.quantity >= qty ? p.withQuantity(p.quantity - qty) : null);
+    }
+
+    /**
+     * Removes a product if it still matches.
+     * @param id The product id.
+     * @param matches Checked against the current product before removing it.
+     * @return True if the product was removed.
+     */
+    boolean remove(int id, Predicate<Product> matches);
+
+    /**
+     * Visits the id of every product, e.g. to find the ones moving to another shard. Products added or removed
+     * during the walk may or may not be seen.
+     * @param action Gets each id.
+     */
+    void forEachId(IntConsumer action);
+
+    int size();
+}
@@ -0,0 +1,117 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps a read replica's store in step with the primary by applying the primary's ChangeLog stream in order, on one
+ * thread. On any error it reconnects and starts over from a fresh snapshot.
+ *
+ * The lag is how far behind the primary's clock the replica's data is: the time of the last change applied, or of
+ * the last heartbeat, which the primary only sends once everything before it was sent. It assumes the two clocks
+ * agree, as they do on one machine.
+ */
+class ReplicaFollower implements Runnable {
+
+    private static final int READ_TIMEOUT_MS = 5000; // Far above the heartbeat interval, so only a dead primary hits it
+    private static final int RETRY_MS = 1000;
+
+    private final String primary;
+    private final ProductStore store;
+    private volatile long appliedSeq = -1;
+    private volatile long freshAsOf; // Primary millis the data is current as of, 0 until the first snapshot is in
+
+    /**
+     * @param primary The primary's "host:port".
+     * @param store The replica's store, only written by this follower.
+     */
+    ReplicaFollower(String primary, ProductStore store) {
+        this.primary = primary;
+        this.store = store;
+    }
+
+    /**
+     * @return Milliseconds the data is behind the primary, or -1 before the first snapshot has been loaded.
+     */
+    long lagMillis() {
+        long asOf = freshAsOf;
+        return asOf == 0 ? -1 : Math.max(0, System.currentTimeMillis() - asOf);
+    }
+
+    /**
+     * @return The seq of the last change applied, -1 before any.
+     */
+    long appliedSeq() {
+        return appliedSeq;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                follow();
+            } catch (IOException e) {
+                System.out.println("Replication from " + primary + " stopped: " + e.getMessage());
+            }
+            freshAsOf = 0; // Unknown until the next snapshot, so reads are refused meanwhile
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow() throws IOException {
+        // HttpURLConnection rather than HttpClient for its read timeout, which notices a primary that died silently
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://" + primary + "/replication/changes").openConnection();
+        conn.setConnectTimeout(2000);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        try {
+            if (conn.getResponseCode() != 200) throw new IOException("Primary answered " + conn.getResponseCode());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream(), 1 << 16));
+            long snapshotSeq = -1;    // The RESET and the snapshot's PUTs all carry the seq the snapshot starts after
+            boolean loading = false; // From the RESET until the first change or heartbeat after the snapshot
+            while (true) {
+                byte type = in.readByte();
+                long seq = in.readLong();
+                long millis = in.readLong();
+                switch (type) {
+                    case ChangeLog.RESET:
+                        store.forEachId(id -> store.remove(id, p -> true));
+                        snapshotSeq = seq;
+                        loading = true;
+                        System.out.println("Replicating " + primary + " from seq " + seq);
+                        break;
+                    case ChangeLog.PUT: {
+                        Product p = new Product(in.readInt(), readString(in), readString(in), in.readFloat(), in.readInt());
+                        if (!store.insert(p)) store.update(p.id, old -> p);
+                        break;
+                    }
+                    case ChangeLog.DELETE:
+                        int id = in.readInt();
+                        store.remove(id, p -> true);
+                        break;
+                    case ChangeLog.HEARTBEAT:
+                        break;
+                    default:
+                        throw new IOException("Unknown change type " + type);
+                }
+                // A half loaded snapshot is not current as of anything
+                if (loading && (type == ChangeLog.HEARTBEAT || seq != snapshotSeq)) loading = false;
+                appliedSeq = seq;
+                if (!loading) freshAsOf = Math.max(freshAsOf, millis);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
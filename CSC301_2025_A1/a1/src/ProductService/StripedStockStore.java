@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Wraps the store for products that get most of the orders ("hotProducts" in the ProductService config section),
+ * so their reserves do not all queue on one quantity. The stock of a hot product is split over "stockStripes"
+ * counters (default one per core), each on its own cache line, and a reserve takes from the counter of its thread
+ * with a compare-and-set. When that counter runs dry the reserve takes the product's lock, collects the stock of
+ * every counter, takes its quantity from the total and spreads the rest evenly again. GET, update and delete also
+ * take the lock, so they see the exact total, which is the sum of the counters. The product answered by a reserve
+ * that did not need the lock has the quantity last written to the wrapped store, as reading every counter would
+ * share their cache lines again.
+ *
+ * The wrapped store keeps the other fields of a hot product and is sent its quantity every flushMs (and on every
+ * update), so the mapped store and the replicas are that far behind on it. Other products go straight through.
+ */
+class StripedStockStore implements ProductStore {
+
+    private static final int PAD = 16; // Ints per counter, one 64 byte cache line
+
+    private final ProductStore store;
+    private final Map<Integer, Stock> hot = new ConcurrentHashMap<>();
+    private final int stripes;
+
+    /**
+     * @param store The store to wrap.
+     * @param hotIds The ids of the products to stripe, whether they exist yet or not.
+     * @param stripes Counters per product, rounded up to a power of two.
+     * @param flushMs How often the totals are written to the wrapped store.
+     */
+    StripedStockStore(ProductStore store, Set<Integer> hotIds, int stripes, int flushMs) {
+        this.store = store;
+        this.stripes = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        for (int id : hotIds) hot.put(id, new Stock(id));
+
+        Thread flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(flushMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Stock s : hot.values()) s.flush();
+            }
+        }, "stock-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public Product get(int id) {
+        Stock s = hot.get(id);
+        return s == null ? store.get(id) : s.get();
+    }
+
+    @Override
+    public boolean insert(Product p) {
+        Stock s = hot.get(p.id);
+        return s == null ? store.insert(p) : s.insert(p);
+    }
+
+    @Override
+    public int insertAll(List<Product> batch) {
+        List<Product> cold = new ArrayList<>(batch.size());
+        int inserted = 0;
+        for (Product p : batch) {
+            Stock s = hot.get(p.id);
+            if (s == null) cold.add(p);
+            else if (s.insert(p)) inserted++;
+        }
+        return inserted + store.insertAll(cold);
+    }
+
+    @Override
+    public Product update(int id, UnaryOperator<Product> change) {
+        Stock s = hot.get(id);
+        return s == null ? store.update(id, change) : s.update(change);
+    }
+
+    @Override
+    public Product reserve(int id, int qty) {
+        Stock s = hot.get(id);
+        return s == null ? store.reserve(id, qty) : s.reserve(qty);
+    }
+
+    @Override
+    public boolean remove(int id, Predicate<Product> matches) {
+        Stock s = hot.get(id);
+        return s == null ? store.remove(id, matches) : s.remove(matches);
+    }
+
+    @Override
+    public void forEachId(IntConsumer action) {
+        store.forEachId(action);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * The striped stock of one hot product. Only the fast path of reserve runs without the lock (this).
+     */
+    private class Stock {
+        private final int id;
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(stripes * PAD);
+        private volatile Product stored; // As last written to the store, null while there is no such product
+
+        Stock(int id) {
+            this.id = id;
+            this.stored = store.get(id);
+            if (stored != null) spread(stored.quantity);
+        }
+
+        Product reserve(int qty) {
+            int i = (int) Thread.currentThread().getId() & (stripes - 1);
+            int index = i * PAD;
+            while (true) {
+                int left = counters.get(index);
+                if (left < qty) return reserveLocked(qty);
+                if (counters.compareAndSet(index, left, left - qty)) return stored;
+            }
+        }
+
+        private synchronized Product reserveLocked(int qty) {
+            if (stored == null) return null;
+            int all = collect();
+            if (all < qty) {
+                spread(all);
+                return null;
+            }
+            spread(all - qty);
+            return stored.withQuantity(all - qty);
+        }
+
+        synchronized Product get() {
+            if (stored == null) return null;
+            int all = total();
+            return all == stored.quantity ? stored : stored.withQuantity(all);
+        }
+
+        synchronized boolean insert(Product p) {
+            if (!store.insert(p)) return false;
+            stored = p;
+            spread(p.quantity);
+            return true;
+        }
+
+        synchronized Product update(UnaryOperator<Product> change) {
+            if (stored == null) return null;
+            int all = collect();
+            Product next = change.apply(all == stored.quantity ? stored : stored.withQuantity(all));
+            if (next == null) {
+                spread(all);
+                return null;
+            }
+            stored = store.update(id, p -> next);
+            if (stored != null) spread(next.quantity);
+            return stored;
+        }
+
+        synchronized boolean remove(Predicate<Product> matches) {
+            if (stored == null) return false;
+            int all = collect();
+            if (!store.remove(id, p -> matches.test(p.withQuantity(all)))) {
+                spread(all);
+                return false;
+            }
+            stored = null;
+            return true;
+        }
+
+        synchronized void flush() {
+            if (stored == null) return;
+            int all = total();
+            if (all != stored.quantity) stored = store.update(id, p -> p.withQuantity(all));
+        }
+
+        // Empties every counter, a reserve meanwhile finds its counter dry and waits for the lock
+        private int collect() {
+            int all = 0;
+            for (int i = 0; i < stripes; i++) all += counters.getAndSet(i * PAD, 0);
+            return all;
+        }
+
+        private void spread(int quantity) {
+            for (int i = 0; i < stripes; i++) {
+                counters.addAndGet(i * PAD, quantity / stripes + (i < quantity % stripes ? 1 : 0));
+            }
+        }
+
+        private int total() {
+            int all = 0;
+            for (int i = 0; i < stripes; i++) all += counters.get(i * PAD);
+            return all;
+        }
+    }
+}
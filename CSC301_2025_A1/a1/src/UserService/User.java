@@ -0,0 +1,31 @@
+import java.nio.charset.StandardCharsets;
+
+class User {
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    int id;
+    String username;
+    String email;
+    byte[] passwordHash; // SHA-256 of the password, 32 bytes, replaced as a whole and never modified in place
+    volatile byte[] json; // Encoded GET response, rebuilt by refreshJson whenever a field changes
+
+    User(int id, String username, String email, byte[] passwordHash) {
+        this.id = id;
+        this.username = username;
+        this.email = email;
+        this.passwordHash = passwordHash;
+        refreshJson();
+    }
+
+    /**
+     * Re-encodes the response bytes, must be called after changing any field. The password is shown as the
+     * uppercase hex of its hash.
+     */
+    void refreshJson() {
+        StringBuilder sb = new StringBuilder(160).append("{\"id\":").append(id).append(",\"username\":");
+        JsonWriter.appendString(sb, username).append(",\"email\":");
+        JsonWriter.appendString(sb, email).append(",\"password\":\"");
+        for (byte b : passwordHash) sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        json = sb.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,416 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-ahead log plus periodic snapshots that let the users table survive a restart.
+ *
+ * Every create/update/delete appends a full-state record (PUT with all fields, or DEL) to the current log file.
+ * One writer thread flushes whatever has piled up with a single fsync (group commit), so concurrent writers share
+ * the cost of one fsync instead of paying one each. Records carry the whole user, so replaying them twice is harmless.
+ *
+ * A snapshot first switches to a new log generation, then writes every user to users.snap while writes go on. Users
+ * changed during the copy may be in the snapshot in any state, but their records are in the new log and replaying it
+ * afterwards fixes them. Once the snapshot is on disk the older logs are deleted, which keeps replay short.
+ *
+ * Log record: [int length][int crc32][byte type][int id] + for PUT: [utf username][utf email][32 byte hash]
+ * Snapshot:   [int magic][int version][long firstLogGeneration] then per user [byte 1][int id][utf username]
+ *             [utf email][32 byte hash], then [byte 0][long crc32 of everything before it]
+ */
+class UserLog {
+
+    private static final byte DEL = 2;
+    private static final byte PUT = 3;
+    private static final int SNAPSHOT_MAGIC = 0x55534E50; // "USNP"
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private final Path dir;
+    private final IntConcurrentMap<User> users;
+    private final Object writeLock;
+    private final long snapshotEvery;
+
+    // Guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+    private ByteArrayOutputStream flushing = new ByteArrayOutputStream(64 * 1024);
+    private FileChannel channel;
+    private long generation;
+    private long appendedSeq;
+    private long durableSeq;
+    private long recordsSinceSnapshot;
+    private IOException failure;
+
+    // Only used while holding writeLock
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+
+    private UserLog(Path dir, IntConcurrentMap<User> users, Object writeLock, long snapshotEvery) {
+        this.dir = dir;
+        this.users = users;
+        this.writeLock = writeLock;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * Rebuilds the users map from the latest snapshot plus the logs written after it, then starts logging.
+     * @param dir Directory holding users.snap and wal-N.log files, created if missing.
+     * @param users The (empty) map to fill.
+     * @param writeLock The lock every mutation of users holds while it appends its record.
+     * @param snapshotEvery Take a snapshot after this many records, or never if 0.
+     * @return The open log.
+     * @throws IOException If the files cannot be read or a snapshot is corrupt.
+     */
+    static UserLog open(Path dir, IntConcurrentMap<User> users, Object writeLock, long snapshotEvery) throws IOException {
+        Files.createDirectories(dir);
+        UserLog log = new UserLog(dir, users, writeLock, snapshotEvery);
+
+        long start = System.nanoTime();
+        long firstGeneration = log.loadSnapshot();
+        List<Long> generations = log.logGenerations();
+        long replayed = 0;
+        for (int i = 0; i < generations.size(); i++) {
+            long g = generations.get(i);
+            if (g < firstGeneration) {
+                Files.deleteIfExists(log.logPath(g)); // Left over from a snapshot that finished but was not cleaned up
+                continue;
+            }
+            replayed += log.replay(g, i == generations.size() - 1);
+        }
+        System.out.println("Recovered " + users.size() + " users (" + replayed + " log records) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        long last = generations.isEmpty() ? firstGeneration : Math.max(firstGeneration, generations.get(generations.size() - 1));
+        log.generation = last;
+        log.channel = FileChannel.open(log.logPath(last),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        log.recordsSinceSnapshot = replayed;
+
+        Thread writer = new Thread(log::writeLoop, "user-wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        if (snapshotEvery > 0) {
+            Thread snapshotter = new Thread(log::snapshotLoop, "user-wal-snapshot");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+        return log;
+    }
+
+    /**
+     * Tells if a username or email fits in a record, whose fields are written with writeUTF and so are limited to
+     * 65535 bytes of modified UTF-8. Handlers check this before changing the map, so a change is never left unlogged.
+     * @param s The field value.
+     * @return True if it can be logged.
+     */
+    static boolean fits(String s) {
+        if (s.length() <= 65535 / 3) return true; // At most 3 bytes a char
+        long bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            bytes += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return bytes <= 65535;
+    }
+
+    /**
+     * Appends the full state of a user. Must be called while holding writeLock, right after changing the map.
+     * @param u The created or updated user.
+     * @return The sequence number to pass to {@link #awaitDurable}.
+     */
+    long appendPut(User u) {
+        try {
+            recordBytes.reset();
+            record.writeByte(PUT);
+            record.writeInt(u.id);
+            record.writeUTF(u.username);
+            record.writeUTF(u.email);
+            record.write(u.passwordHash);
+        } catch (IOException e) { // Cannot happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return appendRecord();
+    }
+
+    /**
+     * Appends the removal of a user. Must be called while holding writeLock, right after changing the map.
+     * @param id The deleted user's id.
+     * @return The sequence number to pass to {@link #awaitDurable}.
+     */
+    long appendDelete(int id) {
+        try {
+            recordBytes.reset();
+            record.writeByte(DEL);
+            record.writeInt(id);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return appendRecord();
+    }
+
+    private synchronized long appendRecord() {
+        byte[] payload = recordBytes.toByteArray();
+        crc.reset();
+        crc.update(payload);
+        writeInt(pending, payload.length);
+        writeInt(pending, (int) crc.getValue());
+        pending.write(payload, 0, payload.length);
+        recordsSinceSnapshot++;
+        notifyAll(); // Wake the writer
+        return ++appendedSeq;
+    }
+
+    /**
+     * Blocks until the record with this sequence number has been fsynced.
+     * @param seq The value returned by appendPut/appendDelete.
+     * @throws IOException If writing the log failed; the change is in memory but may not survive a restart.
+     */
+    synchronized void awaitDurable(long seq) throws IOException {
+        boolean interrupted = false;
+        while (durableSeq < seq && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (durableSeq < seq) throw failure;
+    }
+
+    // Group commit: everything appended while the previous fsync ran goes out with the next one
+    private void writeLoop() {
+        while (true) {
+            FileChannel target;
+            long batchSeq;
+            synchronized (this) {
+                while (pending.size() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                ByteArrayOutputStream swap = flushing;
+                flushing = pending;
+                pending = swap;
+                target = channel;
+                batchSeq = appendedSeq;
+            }
+
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(flushing.toByteArray());
+                while (buf.hasRemaining()) target.write(buf);
+                target.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                System.err.println("User log write failed: " + e);
+                return;
+            }
+            flushing.reset();
+
+            synchronized (this) {
+                durableSeq = batchSeq;
+                notifyAll();
+            }
+        }
+    }
+
+    private void snapshotLoop() {
+        while (true) {
+            try {
+                Thread.sleep(1000);
+                boolean due;
+                synchronized (this) {
+                    due = recordsSinceSnapshot >= snapshotEvery;
+                }
+                if (due) snapshot();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("User snapshot failed, will retry: " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the users map and deletes the logs it replaces.
+     * @throws IOException If the snapshot cannot be written; the logs are kept in that case.
+     */
+    void snapshot() throws IOException {
+        long newGeneration;
+        synchronized (writeLock) { // No new records while the log switches
+            long seq;
+            synchronized (this) {
+                seq = appendedSeq;
+            }
+            awaitDurable(seq);
+            FileChannel next = FileChannel.open(logPath(generation + 1),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            synchronized (this) {
+                channel.close();
+                channel = next;
+                generation++;
+                newGeneration = generation;
+                recordsSinceSnapshot = 0;
+            }
+        }
+
+        Path tmp = dir.resolve("users.snap.tmp");
+        CRC32 sum = new CRC32();
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new CheckedOutputStream(java.nio.channels.Channels.newOutputStream(fc), sum), 1 << 20))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(newGeneration);
+            try {
+                users.forEach(u -> { // Weakly consistent, fixed up by replaying the new log
+                    try {
+                        out.writeByte(1);
+                        out.writeInt(u.id);
+                        out.writeUTF(u.username);
+                        out.writeUTF(u.email);
+                        out.write(u.passwordHash);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeByte(0);
+            out.flush();
+            out.writeLong(sum.getValue());
+            out.flush();
+            fc.force(true);
+        }
+        Files.move(tmp, dir.resolve("users.snap"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (long g : logGenerations()) {
+            if (g < newGeneration) Files.deleteIfExists(logPath(g));
+        }
+    }
+
+    /**
+     * @return The first log generation that still has to be replayed.
+     */
+    private long loadSnapshot() throws IOException {
+        Path file = dir.resolve("users.snap");
+        if (!Files.exists(file)) return 0;
+
+        CRC32 sum = new CRC32();
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 20)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(raw, sum));
+            int version = in.readInt() == SNAPSHOT_MAGIC ? in.readInt() : -1;
+            if (version != SNAPSHOT_VERSION) throw new IOException("Not a user snapshot: " + file);
+            long firstGeneration = in.readLong();
+            while (in.readByte() == 1) {
+                int id = in.readInt();
+                users.put(id, readUser(in, id));
+            }
+            long expected = sum.getValue();
+            if (new DataInputStream(raw).readLong() != expected) throw new IOException("Corrupt user snapshot: " + file);
+            return firstGeneration;
+        }
+    }
+
+    // The fields after the id of a PUT record or snapshot entry
+    private static User readUser(DataInputStream in, int id) throws IOException {
+        String username = in.readUTF();
+        String email = in.readUTF();
+        byte[] hash = new byte[32];
+        in.readFully(hash);
+        return new User(id, username, email, hash);
+    }
+
+    /**
+     * Applies the records of one log file.
+     * @param last True for the newest log, whose tail may be cut off by a crash and is truncated.
+     * @return The number of records applied.
+     */
+    private long replay(long g, boolean last) throws IOException {
+        Path file = logPath(g);
+        long applied = 0;
+        long goodBytes = 0;
+        CRC32 check = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 20))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int expectedCrc = in.readInt();
+                if (length <= 0 || length > 1 << 20) throw new EOFException("Bad record length");
+                byte[] payload = in.readNBytes(length);
+                if (payload.length < length) throw new EOFException("Torn record");
+                check.reset();
+                check.update(payload);
+                if ((int) check.getValue() != expectedCrc) throw new EOFException("Bad record checksum");
+
+                DataInputStream rec = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+                byte type = rec.readByte();
+                int id = rec.readInt();
+                if (type == PUT) users.put(id, readUser(rec, id));
+                else if (type == DEL) users.remove(id);
+                else throw new IOException("Unknown record type " + type + " in user log " + file);
+                applied++;
+                goodBytes += 8 + length;
+            }
+        } catch (EOFException e) {
+            if (!last) throw new IOException("Corrupt user log " + file + ": " + e.getMessage());
+            System.err.println("Truncating torn tail of " + file + " at byte " + goodBytes);
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                fc.truncate(goodBytes);
+            }
+        }
+        return applied;
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> out = new ArrayList<>();
+        try (var files = Files.list(dir)) {
+            files.forEach(p -> {
+                String name = p.getFileName().toString();
+                if (name.startsWith("wal-") && name.endsWith(".log")) {
+                    out.add(Long.parseLong(name.substring(4, name.length() - 4)));
+                }
+            });
+        }
+        out.sort(null);
+        return out;
+    }
+
+    private Path logPath(long g) {
+        return dir.resolve("wal-" + g + ".log");
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+}
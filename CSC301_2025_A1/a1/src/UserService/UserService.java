@@ -7,25 +7,13 @@ import java.io.*;
 
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.Executors;
-
-class User {
-    int id;
-    String username;
-    String email;
-    String password;
-
-    User(int id, String username, String email, String password) {
-        this.id = id;
-        this.username = username;
-        this.email = email;
-        this.password = password; // Already Hashed
-    }
-}
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * UserService is a user microservice responsible for user management. It provides a RESTful API to manage user data
@@ -33,7 +21,10 @@ class User {
  */
 public class UserService { // All programs for UserService
 
-    static Map<Integer, User> users = new HashMap<>();
+    static IntConcurrentMap<User> users = new IntConcurrentMap<>();
+    static final Object writeLock = new Object(); // Held while changing users and appending the matching log record
+    static UserLog log; // Null when no dataDir is configured, users then only live in memory
+    static final int BULK_BATCH = 1000; // Users inserted per writeLock hold and log fsync by /user/bulk
 
     /**
      * Starts the ProductService.
@@ -66,18 +57,40 @@ public class UserService { // All programs for UserService
             return;
         }
 
+        String userConfig = Config.section(config, "UserService");
+        String dataDir = Config.getString(userConfig, "dataDir", "");
+        if (!dataDir.isEmpty()) {
+            log = UserLog.open(Paths.get(dataDir), users, writeLock, Config.getInt(userConfig, "snapshotEvery", 100000));
+        }
+
         // Literally Server creation
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.setExecutor(Executors.newFixedThreadPool(20));
+        server.setExecutor(ServerExecutors.create(userConfig));
 
         // Routers that help us handle different paths
-        server.createContext("/user", new UserHandler());
-        server.createContext("/user/", new UserHandler());
+        Metrics.instrument(server.createContext("/user", new UserHandler()));
+        Metrics.instrument(server.createContext("/user/", new UserHandler()));
+        Metrics.serve(server, userConfig);
+        Metrics.gauge("users", "Users stored.", () -> users.size());
+        BinaryServer.start(userConfig, port, UserService::binary);
 
         server.start();
         System.out.println("Server started on port " + port);
     }
 
+    /**
+     * Answers a request from the binary transport: GET_USER gives 200 with the user as a GET would, or 404.
+     * @param type The message type, only GET_USER is served here.
+     * @param id The user id.
+     * @param arg Unused.
+     * @return The status and body.
+     */
+    static BinaryServer.Reply binary(byte type, int id, int arg) {
+        if (type != BinaryServer.GET_USER) return new BinaryServer.Reply(400);
+        User u = users.get(id);
+        return u == null ? new BinaryServer.Reply(404) : new BinaryServer.Reply(200, u.json);
+    }
+
     /**
      * Extracts port number of specified service from provided config.json manually.
      * @param json The raw JSON file converted to a string.
@@ -120,6 +133,11 @@ public class UserService { // All programs for UserService
                 return;
             }
 
+            if ("POST".equals(method) && path.equals("/user/bulk")) {
+                handleBulk(exchange);
+                return;
+            }
+
             if ("GET".equals(method) && path.startsWith("/user/")) {
                 handleGet(exchange);
                 return;
@@ -136,9 +154,15 @@ public class UserService { // All programs for UserService
          * @throws IOException If the request fails.
          */
         private void handlePost(HttpExchange exchange) throws IOException {
-            Map<String, String> userData = getRequestData(exchange);
-            String command = stripQuotes(userData.get("command"));
-            String s_id = stripQuotes(userData.get("id"));
+            JsonFields userData = getRequestData(exchange);
+            String command = userData.get("command");
+            Metrics.tagCommand(exchange, command);
+            String s_id = userData.get("id");
+
+            if ("lookup".equals(command)) { // Batch command, has "ids" instead of "id"
+                handleLookup(exchange, userData);
+                return;
+            }
 
             if (command == null || s_id == null) {
                 // Required fields missing, send appropriate output
@@ -192,50 +216,29 @@ public class UserService { // All programs for UserService
                 return;
             }
 
+            long t = System.nanoTime();
             User u = users.get(id); // The user we already have
+            Trace.of(exchange).add(Trace.STORAGE, t);
             if (u == null) {
                 exchange.sendResponseHeaders(404, 0);
                 exchange.close();
                 return;
             }
 
-            String json = "{\"id\":" + u.id
-                    + ",\"username\":\"" + u.username
-                    + "\",\"email\":\"" + u.email
-                    + "\",\"password\":\"" + u.password + "\"}";
-            sendResponse(exchange, json);
+            sendResponse(exchange, u.json);
         }
 
-        private static Map<String, String> getRequestData(HttpExchange exchange) throws IOException {
-            Map<String, String> data = new HashMap<>();
-
-            // Read the stream into a String first
-            StringBuilder sb = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) sb.append(line);
-            }
-
-            String body = sb.toString().trim();
-            if (body.length() < 2 || !body.startsWith("{") || !body.endsWith("}")) {
-                return data;
-            }
-
-            // Manual parsing: strip braces and split into pairs
-            String content = body.substring(1, body.length() - 1);
-            String[] pairs = content.split(",");
-
-            if (content.trim().isEmpty()) return data;
-
-            for (String pair : pairs) {
-                String[] parts = pair.split(":", 2); // Split only on the first colon
-                if (parts.length == 2) {
-                    String key = parts[0].trim().replace("\"", "");
-                    String value = parts[1].trim();
-                    data.put(key, value);
-                }
-            }
+        /**
+         * Parses the request body with the shared tokenizer. A malformed body gives no fields, so it ends up as a 400.
+         * @param exchange The HttpExchange for the current request.
+         * @return This thread's reusable field holder.
+         * @throws IOException If reading the body fails.
+         */
+        private static JsonFields getRequestData(HttpExchange exchange) throws IOException {
+            long t = System.nanoTime();
+            JsonFields data = JsonFields.forThread();
+            JsonReader.read(exchange.getRequestBody(), data);
+            Trace.of(exchange).add(Trace.PARSE, t);
             return data;
         }
 
@@ -243,49 +246,179 @@ public class UserService { // All programs for UserService
 
             // Turns response string into bytes, and then send header show it works, next make a stream
             // Use the stream we write back the bytes.
-            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            sendResponse(exchange, response.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends already encoded JSON, e.g. the bytes cached on a User, so a GET does no serialization at all.
+         */
+        private static void sendResponse(HttpExchange exchange, byte[] bytes) throws IOException {
+            long t = System.nanoTime();
             exchange.getResponseHeaders().set("Content-Type", "application/json");
             exchange.sendResponseHeaders(200, bytes.length);
             try (OutputStream os = exchange.getResponseBody()) {
                 os.write(bytes);
+                Trace.of(exchange).add(Trace.SERIALIZE, t); // Closing the stream finishes the trace
             }
             exchange.close();
         }
 
+        /**
+         * Checks many users in one call, used by the OrderService for batch orders. Returns 200 with
+         * {"found":[...]} listing the requested ids that exist, or 400 if "ids" is not an array of ints.
+         * @param exchange The HttpExchange for the current request.
+         * @param data Parsed request body containing the ids.
+         * @throws IOException If the request fails.
+         */
+        private static void handleLookup(HttpExchange exchange, JsonFields data) throws IOException {
+            String sIds = data.get("ids");
+            int[] ids = sIds == null ? null : JsonReader.readIntArray(sIds);
+            if (ids == null) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder(16 + ids.length * 8).append("{\"found\":[");
+            boolean first = true;
+            long t = System.nanoTime();
+            for (int id : ids) {
+                if (users.get(id) == null) continue;
+                if (!first) sb.append(',');
+                sb.append(id);
+                first = false;
+            }
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            sendResponse(exchange, sb.append("]}").toString());
+        }
+
+        /**
+         * Bulk import: the body is newline delimited JSON with one user per line, in the same shape as a create
+         * ({"id", "username", "email", "password"}). Lines are parsed as they arrive and inserted BULK_BATCH at a
+         * time, with one log fsync per batch. Answers 200 with {"created","duplicate","invalid"} counts at the end,
+         * where duplicate and invalid are the lines a single create would have answered with 409 and 400.
+         * @param exchange The HttpExchange for the current request.
+         * @throws IOException If the request fails.
+         */
+        private static void handleBulk(HttpExchange exchange) throws IOException {
+            long[] counts = new long[3]; // created, duplicate, invalid
+            List<User> batch = new ArrayList<>(BULK_BATCH);
+            boolean[] logFailed = {false};
+            JsonReader.readLines(exchange.getRequestBody(), new JsonFields(), line -> {
+                User u = bulkUser(line);
+                if (u == null) {
+                    counts[2]++;
+                    return;
+                }
+                batch.add(u);
+                if (batch.size() == BULK_BATCH && !insertBatch(batch, counts)) logFailed[0] = true;
+            });
+            if (!insertBatch(batch, counts) || logFailed[0]) {
+                exchange.sendResponseHeaders(500, 0);
+                exchange.close();
+                return;
+            }
+            sendResponse(exchange, "{\"created\":" + counts[0] + ",\"duplicate\":" + counts[1]
+                    + ",\"invalid\":" + counts[2] + "}");
+        }
+
+        /**
+         * Checks one bulk line like handleCreate does and hashes its password.
+         * @return The new user, or null if the line is invalid.
+         */
+        private static User bulkUser(JsonFields data) {
+            String username = data.get("username");
+            String email = data.get("email");
+            String password = data.get("password");
+            int id;
+            try {
+                id = Integer.parseInt(data.get("id"));
+            } catch (Exception e) {
+                return null;
+            }
+            if (username == null || email == null || password == null || !data.isString("email") ||
+                    username.trim().isEmpty() || email.trim().isEmpty() || password.trim().isEmpty() ||
+                    !UserLog.fits(username) || !UserLog.fits(email)) {
+                return null;
+            }
+            return new User(id, username, email, sha256(password));
+        }
+
+        /**
+         * Inserts a batch under one hold of writeLock and waits for one fsync, then empties it.
+         * @return False if the log could not be written.
+         */
+        private static boolean insertBatch(List<User> batch, long[] counts) {
+            long seq = 0;
+            synchronized (writeLock) {
+                for (User u : batch) {
+                    if (users.putIfAbsent(u.id, u) != null) {
+                        counts[1]++;
+                        continue;
+                    }
+                    counts[0]++;
+                    if (log != null) seq = log.appendPut(u);
+                }
+            }
+            batch.clear();
+            try {
+                if (log != null && seq > 0) log.awaitDurable(seq);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Waits until a logged change is on disk before it is acknowledged.
+         * @param exchange The HttpExchange for the current request, answered with 500 if the log cannot be written.
+         * @param seq The sequence number of the change's log record, 0 when persistence is off.
+         * @return True if the response can be sent.
+         */
+        private static boolean awaitDurable(HttpExchange exchange, long seq) throws IOException {
+            if (log == null) return true;
+            long t = System.nanoTime();
+            try {
+                log.awaitDurable(seq);
+                Trace.of(exchange).add(Trace.STORAGE, t);
+                return true;
+            } catch (IOException e) {
+                exchange.sendResponseHeaders(500, 0);
+                exchange.close();
+                return false;
+            }
+        }
+
         /**
          * Validates and creates a new user. Hashes passwords using SHA-256 before storage.
          * @param exchange The HTTP exchange object.
          * @param data Parsed request payload.
          * @param id The target user ID.
          */
-        private static void handleCreate(HttpExchange exchange, Map<String, String> data, int id) throws IOException {
+        private static void handleCreate(HttpExchange exchange, JsonFields data, int id) throws IOException {
 
-            String rawUsername = data.get("username");
-            String rawEmail = data.get("email");
-            String rawPassword = data.get("password");
+            String username = data.get("username");
+            String email = data.get("email");
+            String password = data.get("password");
 
             // If there is missing field, we need to send error and close
-            if (rawUsername == null || rawEmail == null || rawPassword == null) {
+            if (username == null || email == null || password == null) {
                 exchange.sendResponseHeaders(400, 0);
                 exchange.close();
                 return;
             }
 
             // Check if email is valid email format (Not integers)
-            boolean emailWasQuoted = rawEmail.trim().startsWith("\"") && rawEmail.trim().endsWith("\"");
-            if (!emailWasQuoted) {
+            if (!data.isString("email")) {
                 exchange.sendResponseHeaders(400, 0);
                 exchange.close();
                 return;
             }
 
-            String username = stripQuotes(rawUsername);
-            String email = stripQuotes(rawEmail);
-            String password = stripQuotes(rawPassword);
 
-
-            // Validate emptiness after stripping
-            if (username.trim().isEmpty() || email.trim().isEmpty() || password.trim().isEmpty()) {
+            // Validate emptiness after stripping, and that the fields are short enough to be logged
+            if (username.trim().isEmpty() || email.trim().isEmpty() || password.trim().isEmpty() ||
+                    !UserLog.fits(username) || !UserLog.fits(email)) {
                 exchange.sendResponseHeaders(400, 0);
                 exchange.close();
                 return;
@@ -299,25 +432,31 @@ public class UserService { // All programs for UserService
             }
 
             // Successfully Created new user
-            String hashed = sha256LowerHex(password);
-            User newUser = new User(id, username, email, hashed);
-            users.put(id, newUser);
-
-            String json = "{\"id\":" + newUser.id
-                    + ",\"username\":\"" + newUser.username
-                    + "\",\"email\":\"" + newUser.email
-                    + "\",\"password\":\"" + newUser.password + "\"}";
-            sendResponse(exchange, json);
+            User newUser = new User(id, username, email, sha256(password));
+            long seq;
+            long t = System.nanoTime();
+            synchronized (writeLock) {
+                if (users.putIfAbsent(id, newUser) != null) { // Lost a race with another create
+                    exchange.sendResponseHeaders(409, 0);
+                    exchange.close();
+                    return;
+                }
+                seq = log == null ? 0 : log.appendPut(newUser);
+            }
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (!awaitDurable(exchange, seq)) return;
+
+            sendResponse(exchange, newUser.json);
         }
 
         /**
          * Updates an existing user's record. Only updates fields present in the request body.
          * @param exchange The HttpExchange for the current request.
-         * @param data Map of fields to be updated (username, email, or password).
+         * @param data Parsed fields to be updated (username, email, or password).
          * @param id The ID of the user to update.
          * @throws IOException If request fails.
          */
-        private static void handleUpdate(HttpExchange exchange, Map<String, String> data, int id) throws  IOException {
+        private static void handleUpdate(HttpExchange exchange, JsonFields data, int id) throws  IOException {
             User existingUser = users.get(id);
 
             if (existingUser == null) { // Return error user DNE (Not found)
@@ -326,48 +465,49 @@ public class UserService { // All programs for UserService
                 return;
             }
 
-            if (data.containsKey("username")) {
-                String v = stripQuotes(data.get("username"));
-                if (v == null || v.trim().isEmpty()) { exchange.sendResponseHeaders(400, 0);
-                    exchange.close();
-                    return;
-                }
-                existingUser.username = v;
+            // Validate everything first, so a bad field leaves the user (and its cached bytes) untouched
+            String username = data.get("username");
+            String email = data.get("email");
+            String password = data.get("password");
+            if ((data.has("username") && (username == null || username.trim().isEmpty() || !UserLog.fits(username))) ||
+                    (data.has("email") && (email == null || email.trim().isEmpty() || !UserLog.fits(email))) ||
+                    (data.has("password") && (password == null || password.trim().isEmpty()))) {
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
             }
-            if (data.containsKey("email")) {
-                String v = data.get("email");
-                if (v == null || v.trim().isEmpty()) { exchange.sendResponseHeaders(400, 0);
-                    exchange.close();
-                    return;
-                }
-                if (!(v.startsWith("\"") && v.endsWith("\"")) || v.length() <= 2) { // Check valid email
-                    exchange.sendResponseHeaders(400, 0);
-                    exchange.close();
-                    return;
-                }
-                existingUser.email = stripQuotes(v);
+            if (email != null && !data.isString("email")) { // Check valid email
+                exchange.sendResponseHeaders(400, 0);
+                exchange.close();
+                return;
             }
-            if (data.containsKey("password")) {
-                String v = stripQuotes(data.get("password"));
-                if (v == null || v.trim().isEmpty()) { exchange.sendResponseHeaders(400, 0);
+
+            byte[] hashed = password == null ? null : sha256(password);
+            long seq;
+            long t = System.nanoTime();
+            synchronized (writeLock) {
+                if (users.get(id) != existingUser) { // Deleted meanwhile
+                    exchange.sendResponseHeaders(404, 0);
                     exchange.close();
                     return;
                 }
-                existingUser.password = sha256LowerHex(v);
+                if (username != null) existingUser.username = username;
+                if (email != null) existingUser.email = email;
+                if (hashed != null) existingUser.passwordHash = hashed;
+                existingUser.refreshJson();
+                seq = log == null ? 0 : log.appendPut(existingUser);
             }
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (!awaitDurable(exchange, seq)) return;
 
             // Updated all fields at this point, need appropriate output
-            String json = "{\"id\":" + existingUser.id
-                    + ",\"username\":\"" + existingUser.username
-                    + "\",\"email\":\"" + existingUser.email
-                    + "\",\"password\":\"" + existingUser.password + "\"}";
-            sendResponse(exchange, json);
+            sendResponse(exchange, existingUser.json);
         }
 
         /**
          * Deletes a user only if the provided username, email, and password match the record.
          */
-        private static void handleDelete(HttpExchange exchange, Map<String, String> data, int id) throws IOException {
+        private static void handleDelete(HttpExchange exchange, JsonFields data, int id) throws IOException {
             User existingUser = users.get(id); // These are what we already have for a User
 
             if (existingUser == null) { // Return error, user DNE (Not found)
@@ -378,9 +518,9 @@ public class UserService { // All programs for UserService
 
 
             // These are from the client JSON
-            String username = stripQuotes(data.get("username"));
-            String email = stripQuotes(data.get("email"));
-            String password = stripQuotes(data.get("password"));
+            String username = data.get("username");
+            String email = data.get("email");
+            String password = data.get("password");
 
             if (username == null || username.trim().isEmpty() ||
                     email == null || email.trim().isEmpty() ||
@@ -391,9 +531,18 @@ public class UserService { // All programs for UserService
                 return;
             }
 
-            if (username.equals(existingUser.username) && email.equals(existingUser.email) &&
-                    sha256LowerHex(password).equals(existingUser.password)) {
-                users.remove(id); // Removed the user, send appropriate response
+            boolean passwordMatches = passwordMatches(password, existingUser.passwordHash);
+            long seq = -1;
+            long t = System.nanoTime();
+            synchronized (writeLock) {
+                if (username.equals(existingUser.username) && email.equals(existingUser.email) &&
+                        passwordMatches && users.remove(id, existingUser)) {
+                    seq = log == null ? 0 : log.appendDelete(id);
+                }
+            }
+            Trace.of(exchange).add(Trace.STORAGE, t);
+            if (seq >= 0) {
+                if (!awaitDurable(exchange, seq)) return;
                 sendResponse(exchange, "{}"); // success
                 return;
             }
@@ -405,31 +554,59 @@ public class UserService { // All programs for UserService
 
     }
 
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) { // Every JVM has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[][]> HASH_BUFFERS = ThreadLocal.withInitial(() -> new byte[][] {
+            new byte[64], new byte[32] // UTF-8 of the password, hash being checked
+    });
+
     /**
-     * Hashes a string in UPPERCASE Hex.
-     * @param s String to be hashed.
-     * @return Hashed representation of s.
+     * Hashes a password with this thread's digest.
+     * @param s The password.
+     * @return Its 32 byte SHA-256 hash.
      */
-    private static String sha256LowerHex(String s) {
+    private static byte[] sha256(String s) {
+        return digest(s).digest();
+    }
+
+    /**
+     * Checks a password against a stored hash without allocating. MessageDigest.isEqual takes the same time
+     * wherever the first difference is, so the comparison does not leak how much of the hash matched.
+     * @param password The password given by the client.
+     * @param hash The stored hash.
+     * @return True if the password hashes to hash.
+     */
+    private static boolean passwordMatches(String password, byte[] hash) {
+        byte[] computed = HASH_BUFFERS.get()[1];
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash = md.digest(s.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hash) sb.append(String.format("%02X", b));
-            return sb.toString();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            digest(password).digest(computed, 0, 32);
+        } catch (DigestException e) { // The buffer always fits a SHA-256 hash
+            throw new IllegalStateException(e);
         }
+        return MessageDigest.isEqual(computed, hash);
     }
 
-    // Stripping quotes for the correct format to store as User
-    private static String stripQuotes(String s) { // For fixing integer email issue
-        if (s == null) return null;
-        s = s.trim();
-        if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\"")) {
-            return s.substring(1, s.length() - 1);
+    // Feeds the UTF-8 of s to this thread's digest, through a reused buffer when s is ASCII
+    private static MessageDigest digest(String s) {
+        MessageDigest md = SHA256.get();
+        byte[][] buffers = HASH_BUFFERS.get();
+        int n = s.length();
+        if (n > buffers[0].length) buffers[0] = new byte[Math.max(n, buffers[0].length * 2)];
+        byte[] buf = buffers[0];
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                md.update(s.getBytes(StandardCharsets.UTF_8));
+                return md;
+            }
+            buf[i] = (byte) c;
         }
-        return s;
+        md.update(buf, 0, n);
+        return md;
     }
-
 }